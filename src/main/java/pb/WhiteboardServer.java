@@ -160,22 +160,20 @@ public class WhiteboardServer {
         		String board = (String) eventArgs2[0]; 
                         System.out.println("Received share board request: "+board);
                         boardSet.add(board);
-                        for (Endpoint liveEndpoint:liveEndpoints) {
-                            if (liveEndpoint != endpoint){
-                                liveEndpoint.emit(sharingBoard, board);
-                                System.out.println("Sharing new board " + board);
-                            }
-                        }
+                        System.out.println("Sharing new board " + board);
+                        serverManager.broadcast(sharingBoard, board, liveEndpoints, (other)->other != endpoint)
+                        	.forEach((failed,reason)->{
+                        		log.warning("could not share board with "+failed.getOtherEndpointId()+": "+reason);
+                        	});
         	}).on(unshareBoard, (eventArgs2)->{
                         String board = (String) eventArgs2[0]; 
                         System.out.println("Received unshare request: "+ board);
                         boardSet.remove(board);
-                        for (Endpoint liveEndpoint:liveEndpoints) {
-                            if (liveEndpoint != endpoint){
-                                liveEndpoint.emit(unsharingBoard, board);
-                                System.out.println("Unsharing board " + board);
-                            }
-                        }
+                        System.out.println("Unsharing board " + board);
+                        serverManager.broadcast(unsharingBoard, board, liveEndpoints, (other)->other != endpoint)
+                        	.forEach((failed,reason)->{
+                        		log.warning("could not unshare board with "+failed.getOtherEndpointId()+": "+reason);
+                        	});
                 });
         }).on(ServerManager.sessionStopped,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
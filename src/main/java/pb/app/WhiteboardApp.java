@@ -280,12 +280,7 @@ public class WhiteboardApp {
 									whiteboards.put(boardName,wb);
 									drawSelectedWhiteboard();
 									//send new board to listeners
-									ArrayList<Endpoint> endpointList = boardListenedByPeer.get(boardName);
-									for(Endpoint endpoint1:endpointList){
-										if(!endpoint1.equals(endpoint)){
-											endpoint1.emit(boardUndoUpdate,args2);
-										}
-									}
+									broadcastToListeners(boardName,boardUndoUpdate,(String)args2[0],endpoint);
 									endpoint.emit(boardUndoAccepted,args2);
 								}
 							}
@@ -302,12 +297,7 @@ public class WhiteboardApp {
 									whiteboards.put(boardName,wb);
 									drawSelectedWhiteboard();
 									//send new board to listeners
-									ArrayList<Endpoint> endpointList = boardListenedByPeer.get(boardName);
-									for(Endpoint endpoint1:endpointList){
-										if(!endpoint1.equals(endpoint)){
-											endpoint1.emit(boardClearUpdate,args2);
-										}
-									}
+									broadcastToListeners(boardName,boardClearUpdate,(String)args2[0],endpoint);
 									endpoint.emit(boardClearAccepted,args2);
 								}
 							}
@@ -320,12 +310,7 @@ public class WhiteboardApp {
                         	endpoint.emit(boardPathAccepted,args2);
                         	String boardName = getBoardName((String)args2[0]);
                         	Whiteboard wb = whiteboards.get(boardName);
-                        	ArrayList<Endpoint> endpointList = boardListenedByPeer.get(boardName);
-                        	for(Endpoint endpoint1:endpointList){
-                        		if(!endpoint1.equals(endpoint)){
-									endpoint1.emit(updateToRemote,args2);
-								}
-							}
+                        	broadcastToListeners(boardName,updateToRemote,(String)args2[0],endpoint);
                         });
                 }).on(peerStopped,(args)->{
                         Endpoint endpoint = (Endpoint)args[0];
@@ -725,14 +710,9 @@ public class WhiteboardApp {
 						endpoint.emit(boardPathUpdate, selectedBoard.getName()+"%"+selectedBoard.getVersion()+"%"+currentPath);
 				}
 				else{
-					ArrayList<Endpoint> endpointList = boardListenedByPeer.get(selectedBoard.getName());
-					if(endpointList != null){
-						for(int i = 0; i < endpointList.size(); i++){
-							Endpoint endpoint = endpointList.get(i);
-							System.out.println("localpathupdate :"+selectedBoard.getName()+"%"+selectedBoard.getVersion()+"%"+currentPath);
-							endpoint.emit(updateToRemote, selectedBoard.getName()+"%"+selectedBoard.getVersion()+"%"+currentPath);
-						}
-					}
+					String update = selectedBoard.getName()+"%"+selectedBoard.getVersion()+"%"+currentPath;
+					System.out.println("localpathupdate :"+update);
+					broadcastToListeners(selectedBoard.getName(),updateToRemote,update,null);
 				}
 			}
 		} else {
@@ -740,6 +720,23 @@ public class WhiteboardApp {
 		}
 	}
 	
+	/**
+	 * Send an update of a board to the peers listening to it, encoded once
+	 * for all of them.
+	 * @param boardName
+	 * @param eventName
+	 * @param update
+	 * @param from the peer the update came from, which is not sent it, or null
+	 */
+	private void broadcastToListeners(String boardName,String eventName,String update,Endpoint from) {
+		ArrayList<Endpoint> endpointList = boardListenedByPeer.get(boardName);
+		if(endpointList==null) return;
+		peerManager.broadcast(eventName,update,endpointList,(endpoint)->endpoint!=from)
+			.forEach((failed,reason)->{
+				log.warning("could not send "+eventName+" to "+failed.getOtherEndpointId()+": "+reason);
+			});
+	}
+	
 	/**
 	 * Clear the selected whiteboard.
 	 */
@@ -759,11 +756,7 @@ public class WhiteboardApp {
 					endpoint.emit(boardClearUpdate,selectedBoard.toString());
 				}
 				else{
-					ArrayList<Endpoint> endpointList = boardListenedByPeer.get(selectedBoard.getName());
-					for(int i = 0; i < endpointList.size(); i++){
-						Endpoint endpoint = endpointList.get(i);
-						endpoint.emit(boardClearUpdate,selectedBoard.toString());
-					}
+					broadcastToListeners(selectedBoard.getName(),boardClearUpdate,selectedBoard.toString(),null);
 				}
 			}
 		} else {
@@ -789,11 +782,7 @@ public class WhiteboardApp {
 					endpoint.emit(boardUndoUpdate,selectedBoard.toString());
 				}
 				else{
-					ArrayList<Endpoint> endpointList = boardListenedByPeer.get(selectedBoard.getName());
-					for(int i = 0; i < endpointList.size(); i++){
-						Endpoint endpoint = endpointList.get(i);
-						endpoint.emit(boardUndoUpdate,selectedBoard.toString());
-					}
+					broadcastToListeners(selectedBoard.getName(),boardUndoUpdate,selectedBoard.toString(),null);
 				}
 			}
 		} else {
@@ -3,11 +3,15 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.EndpointConfig;
+import pb.managers.endpoint.NioEndpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
@@ -16,7 +20,10 @@ import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.rpc.IRpcProtocolHandler;
+import pb.protocols.rpc.RpcProtocol;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.EventKey;
 
 /**
  * Manages the connection to the server and the client's state.
@@ -29,7 +36,7 @@ import pb.protocols.session.SessionProtocol;
  *
  */
 public class ClientManager extends Manager implements ISessionProtocolHandler,
-	IKeepAliveProtocolHandler, IEventProtocolHandler
+	IKeepAliveProtocolHandler, IEventProtocolHandler, IRpcProtocolHandler
 {
 	private static Logger log = Logger.getLogger(ClientManager.class.getName());
 	
@@ -44,6 +51,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 * </ul>
 	 */
 	public static final String sessionStarted="SESSION_STARTED";
+
+	/**
+	 * The key for {@link #sessionStarted}, the payload is the endpoint.
+	 */
+	public static final EventKey<Endpoint> sessionStartedKey=EventKey.of(sessionStarted);
 	
 	/**
 	 * Emitted when a session has stopped and can longer be used.
@@ -52,6 +64,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 * </ul>
 	 */
 	public static final String sessionStopped="SESSION_STOPPED";
+
+	/**
+	 * The key for {@link #sessionStopped}, the payload is the endpoint.
+	 */
+	public static final EventKey<Endpoint> sessionStoppedKey=EventKey.of(sessionStopped);
 	
 	/**
 	 * Emitted when a session has stopped in error and can no longer
@@ -61,6 +78,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 * </ul>
 	 */
 	public static final String sessionError="SESSION_ERROR";
+
+	/**
+	 * The key for {@link #sessionError}, the payload is the endpoint.
+	 */
+	public static final EventKey<Endpoint> sessionErrorKey=EventKey.of(sessionError);
 	
 	/**
 	 * The session protocol for this client, so we can stop the
@@ -100,6 +122,20 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		this.port=port;
 	}
 	
+	/**
+	 * Initialise the client manage with a host and port to connect to, and
+	 * the config to use for the connection's endpoint, e.g. to select the NIO engine.
+	 * @param host
+	 * @param port
+	 * @param endpointConfig
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	public ClientManager(String host,int port,EndpointConfig endpointConfig) throws UnknownHostException, InterruptedException {
+		this(host,port);
+		this.endpointConfig=endpointConfig;
+	}
+	
 	@Override
 	public void shutdown() {
 		sessionProtocol.stopSession();
@@ -137,13 +173,21 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 						     // if errors occur on the connection
 		log.info("attempting to connect to "+host+":"+port);
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
-			Endpoint endpoint = new Endpoint(socket,this);
+			Endpoint endpoint;
+			if(endpointConfig.getEngine()==EndpointConfig.Engine.NIO) {
+				SocketChannel channel=SocketChannel.open(
+						new InetSocketAddress(InetAddress.getByName(host),port));
+				socket=channel.socket();
+				endpoint = new NioEndpoint(channel,this,endpointConfig);
+			} else {
+				socket=new Socket(InetAddress.getByName(host),port);
+				endpoint = new Endpoint(socket,this,endpointConfig);
+			}
 			endpoint.start();
 
 			try {
-				// just wait for this thread to terminate
-				endpoint.join();
+				// just wait for the endpoint to terminate
+				endpoint.awaitTermination();
 			} catch (InterruptedException e) {
 				// just make sure the endpoint has done everything it should
 				endpoint.close();
@@ -164,13 +208,16 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	}
 	
 	/**
-	 * The endpoint is ready to use.
+	 * The endpoint is ready to use. This is also called for each stream
+	 * opened on the connection, which gets a session of its own but is
+	 * kept alive by the connection.
 	 * @param endpoint
 	 */
 	@Override
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
-		sessionProtocol = new SessionProtocol(endpoint,this);
+		SessionProtocol sessionProtocol = new SessionProtocol(endpoint,this);
+		if(!endpoint.isStream()) this.sessionProtocol = sessionProtocol;
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(sessionProtocol);
@@ -179,6 +226,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			// hmmm, so the server is requesting a session start?
 			log.warning("server initiated the session protocol... weird");
 		}
+		if(endpoint.isStream()) return;
 		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
 		try {
 			// we need to add it to the endpoint before starting it
@@ -206,9 +254,10 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("connection with server terminated abruptly");
-		localEmit(sessionError,endpoint);
+		localEmit(sessionErrorKey,endpoint);
 		endpoint.close();
-		shouldWeRetry=true;
+		// a stream failing leaves the connection up
+		if(!endpoint.isStream()) shouldWeRetry=true;
 	}
 
 	/**
@@ -218,7 +267,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("server sent an invalid message");
-		localEmit(sessionError,endpoint);
+		localEmit(sessionErrorKey,endpoint);
 		endpoint.close();
 	}
 	
@@ -230,9 +279,10 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint,Protocol protocol) {
 		log.severe("server has timed out");
-		localEmit(sessionError,endpoint);
+		localEmit(sessionErrorKey,endpoint);
 		endpoint.close();
-		shouldWeRetry=true;
+		// a stream failing leaves the connection up
+		if(!endpoint.isStream()) shouldWeRetry=true;
 	}
 
 	/**
@@ -242,7 +292,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint,Protocol protocol) {
 		log.severe("protocol with server has been violated: "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		localEmit(sessionErrorKey,endpoint);
 		endpoint.close();
 	}
 
@@ -262,7 +312,15 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
-		localEmit(sessionStarted,endpoint);
+		RpcProtocol rpcProtocol = new RpcProtocol(endpoint,this);
+		try {
+			endpoint.handleProtocol(rpcProtocol);
+			rpcProtocol.startAsServer();
+		} catch (ProtocolAlreadyRunning e) {
+			// hmmm... already requested by the server
+		}
+		
+		localEmit(sessionStartedKey,endpoint);
 	}
 
 	/**
@@ -272,7 +330,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with server");
-		localEmit(sessionStopped,endpoint);
+		localEmit(sessionStoppedKey,endpoint);
 		endpoint.close(); // this will stop all the protocols as well
 	}
 	
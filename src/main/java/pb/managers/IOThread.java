@@ -2,11 +2,21 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import pb.managers.endpoint.EndpointConfig;
+
 /**
  * Listen for connections on a given port number and pass them to the
  * {@link pb.managers.ServerManager} using
@@ -14,27 +24,68 @@ import java.util.logging.Logger;
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
- * 
+ * <br/>
+ * Connections are accepted by {@link EndpointConfig#getAcceptors()} threads,
+ * this one and as many more as needed. Where the operating system supports
+ * SO_REUSEPORT each of them has a server socket of its own bound to the port,
+ * with a backlog of {@link EndpointConfig#getAcceptBacklog()}, otherwise they
+ * share the one server socket. The acceptors only accept, they hand each
+ * connection to a small pool of setup threads that create and start its
+ * endpoint, so that many clients connecting at once, e.g. reconnecting after
+ * the server restarts, are taken off the backlog as fast as possible.
+ *
  * @see {@link pb.managers.ServerManager}
  * @author aaron
  *
  */
 public class IOThread extends Thread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
-	private ServerSocket serverSocket=null;
+	private final ServerSocket[] serverSockets;
 	private int port;
 	private ServerManager serverManager;
-	
+
+	/**
+	 * The acceptors other than this thread.
+	 */
+	private final Thread[] acceptors;
+
+	/**
+	 * Creates and starts the endpoints of accepted connections.
+	 */
+	private final ThreadPoolExecutor setup;
+
+	/**
+	 * Set once the io thread is shutting down.
+	 */
+	private volatile boolean closing=false;
+
+	/**
+	 * Connections accepted, and the time from accepting them to their
+	 * endpoints being started.
+	 */
+	private final AtomicLong accepted = new AtomicLong(0);
+	private final AtomicLong started = new AtomicLong(0);
+	private final AtomicLong latencyNanos = new AtomicLong(0);
+	private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+
+	/**
+	 * Connections accepted in the current second and in the second before
+	 * it, guarded by this.
+	 */
+	private long second;
+	private int thisSecond=0;
+	private int lastSecond=0;
+
 	/**
 	 * Emitted when the io thread has started. The argument
-	 * provides the io thread's Internet address in the 
+	 * provides the io thread's Internet address in the
 	 * form "host:port"
 	 * <ol>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ol>
 	 */
 	public static final String ioThread = "IO_THREAD";
-	
+
 	/**
 	 * Initialise the IOThread with a port number to listen on and reference
 	 * to the {@link pb.managers.ServerManager}.
@@ -43,53 +94,263 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		// let's throw this since its potentially unrecoverable
+		EndpointConfig config = serverManager.getEndpointConfig();
+		int count = Math.max(config.getAcceptors(),1);
+		boolean reusePort = count>1 && canReusePort(config);
+		if(count>1 && !reusePort) log.warning("SO_REUSEPORT is not supported, acceptors will share one server socket");
+		serverSockets = new ServerSocket[reusePort?count:1];
+		try {
+			for(int i=0;i<serverSockets.length;i++) {
+				serverSockets[i] = bind(port,config,reusePort);
+				// the rest are bound to whichever port the first one got
+				port = serverSockets[0].getLocalPort();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
 		this.port=port;
 		this.serverManager=serverManager;
+		setup = new ThreadPoolExecutor(Math.max(config.getAcceptSetupThreads(),1),
+				Math.max(config.getAcceptSetupThreads(),1),60,TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),(runnable)->{
+			Thread thread = new Thread(runnable,"EndpointSetup");
+			thread.setDaemon(true);
+			return thread;
+		});
+		setup.allowCoreThreadTimeOut(true);
+		acceptors = new Thread[count-1];
+		for(int i=0;i<acceptors.length;i++) {
+			ServerSocket serverSocket = serverSockets[reusePort?i+1:0];
+			acceptors[i] = new Thread(()->{accept(serverSocket);},"IOThread-"+(i+1));
+		}
 		setName("IOThread");
 		start();
 	}
-	
+
 	/**
-	 * Close the server socket and make sure the thread terminates.
+	 * @param config
+	 * @return true if server sockets for the config's engine can be bound
+	 * with SO_REUSEPORT
+	 * @throws IOException
 	 */
-	public void shutDown() {
-		if(serverSocket!=null)
+	private static boolean canReusePort(EndpointConfig config) throws IOException {
+		if(config.getEngine()==EndpointConfig.Engine.NIO) {
+			try(ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+				return serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			}
+		}
+		try(ServerSocket serverSocket = new ServerSocket()) {
+			return serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		}
+	}
+
+	/**
+	 * @param port
+	 * @param config
+	 * @param reusePort true to bind with SO_REUSEPORT
+	 * @return a server socket bound to the port
+	 * @throws IOException
+	 */
+	private static ServerSocket bind(int port,EndpointConfig config,boolean reusePort) throws IOException {
+		InetSocketAddress address = new InetSocketAddress(port);
+		if(config.getEngine()==EndpointConfig.Engine.NIO) {
+			// accepted sockets need a channel for the selector
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
 			try {
-				serverSocket.close();
+				if(reusePort) serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT,true);
+				serverChannel.bind(address,config.getAcceptBacklog());
 			} catch (IOException e) {
-				log.warning("exception closing server socket: "+e.getMessage());
+				serverChannel.close();
+				throw e;
 			}
+			return serverChannel.socket();
+		}
+		ServerSocket serverSocket = new ServerSocket();
+		try {
+			if(reusePort) serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT,true);
+			serverSocket.bind(address,config.getAcceptBacklog());
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+		return serverSocket;
+	}
+
+	/**
+	 * Close the server socket and make sure the thread terminates.
+	 */
+	public void shutDown() {
+		closing=true;
+		close();
 		interrupt();
 	}
-	
+
+	/**
+	 * Close the server sockets.
+	 */
+	private void close() {
+		for(ServerSocket serverSocket : serverSockets) {
+			if(serverSocket!=null)
+				try {
+					serverSocket.close();
+				} catch (IOException e) {
+					log.warning("exception closing server socket: "+e.getMessage());
+				}
+		}
+	}
+
 	/**
 	 * Listen for connections and pass them to the ServerManager.
 	 */
 	@Override
 	public void run() {
-		log.info("listening for connections on port "+port);
+		log.info("listening for connections on port "+port+" with "+(acceptors.length+1)+" acceptors");
 		try {
 			serverManager.emit(ioThread,InetAddress.getLocalHost().getHostAddress()+":"+port);
 		} catch (UnknownHostException e1) {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
+		for(Thread acceptor : acceptors) acceptor.start();
+		accept(serverSockets[0]);
+		closing=true;
+		close();
+		for(Thread acceptor : acceptors) {
+			acceptor.interrupt();
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				// we are terminating anyway
+			}
+		}
+		// endpoints already accepted are still set up
+		setup.shutdown();
+		log.info("IOThread terminating");
+	}
+
+	/**
+	 * Accept connections until the io thread shuts down, handing each one to
+	 * the setup threads.
+	 * @param serverSocket
+	 */
+	private void accept(ServerSocket serverSocket) {
+		while(!closing && !Thread.currentThread().isInterrupted() && !serverSocket.isClosed()){
 			Socket clientSocket;
 			try {
 				clientSocket = serverSocket.accept();
-				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
 			} catch (IOException e) {
-				log.warning("exception accepting connection: "+e.getMessage());
-			} 
+				if(!closing) log.warning("exception accepting connection: "+e.getMessage());
+				continue;
+			}
+			long acceptedAt = System.nanoTime();
+			log.info("Received connection from "+clientSocket.getInetAddress());
+			accepted.incrementAndGet();
+			counted(acceptedAt);
+			try {
+				setup.execute(()->{
+					setUp(clientSocket,acceptedAt);
+				});
+			} catch (RejectedExecutionException e) {
+				log.warning("connection accepted while shutting down: "+clientSocket.getInetAddress());
+				try {
+					clientSocket.close();
+				} catch (IOException e1) {
+					// it is being dropped anyway
+				}
+			}
 		}
-		log.info("IOThread terminating");
+	}
+
+	/**
+	 * Have the server manager create and start the endpoint of an accepted
+	 * connection.
+	 * @param clientSocket
+	 * @param acceptedAt the time in ns the connection was accepted
+	 */
+	private void setUp(Socket clientSocket,long acceptedAt) {
 		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			log.warning("exception closing server socket: "+e.getMessage());
+			serverManager.acceptClient(clientSocket);
+		} catch (RuntimeException e) {
+			log.severe("could not set up connection from "+clientSocket.getInetAddress()+": "+e);
+			try {
+				clientSocket.close();
+			} catch (IOException e1) {
+				// it is being dropped anyway
+			}
+			return;
 		}
+		long latency = System.nanoTime()-acceptedAt;
+		started.incrementAndGet();
+		latencyNanos.addAndGet(latency);
+		maxLatencyNanos.accumulateAndGet(latency,Math::max);
+	}
+
+	/**
+	 * Count a connection accepted at the given time.
+	 * @param now in ns
+	 */
+	private synchronized void counted(long now) {
+		roll(now);
+		thisSecond++;
+	}
+
+	/**
+	 * Move on to the second that the time is in, if it is a later one.
+	 * @param now in ns
+	 */
+	private void roll(long now) {
+		long s = now/1000000000L;
+		if(s==second) return;
+		lastSecond = s==second+1?thisSecond:0;
+		thisSecond=0;
+		second=s;
+	}
+
+	/**
+	 * @return the port being listened on
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the number of connections accepted
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return the number of connections accepted in the last whole second
+	 */
+	public synchronized int getAcceptRate() {
+		roll(System.nanoTime());
+		return lastSecond;
+	}
+
+	/**
+	 * @return the number of accepted connections waiting for a setup thread
+	 */
+	public int getSetupQueueDepth() {
+		return setup.getQueue().size();
+	}
+
+	/**
+	 * @return the average time, in ns, from accepting a connection to its
+	 * endpoint being started, including the wait for a setup thread
+	 */
+	public long getAverageAcceptLatencyNanos() {
+		long count = started.get();
+		return count==0?0:latencyNanos.get()/count;
+	}
+
+	/**
+	 * @return the longest time, in ns, from accepting a connection to its
+	 * endpoint being started
+	 */
+	public long getMaxAcceptLatencyNanos() {
+		return maxLatencyNanos.get();
 	}
 }
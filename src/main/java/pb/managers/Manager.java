@@ -1,10 +1,16 @@
 package pb.managers;
 
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Predicate;
+
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.EndpointConfig;
 import pb.managers.endpoint.IEndpointHandler;
 import pb.protocols.IProtocolHandler;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventBroadcast;
 import pb.utils.Eventable;
 
 /**
@@ -17,6 +23,47 @@ import pb.utils.Eventable;
  */
 public class Manager extends Eventable implements IProtocolHandler, IEndpointHandler{
 	
+	/**
+	 * How endpoints created by this manager are run.
+	 */
+	protected EndpointConfig endpointConfig = new EndpointConfig();
+	
+	/**
+	 * @return the config used for endpoints created by this manager
+	 */
+	public EndpointConfig getEndpointConfig() {
+		return endpointConfig;
+	}
+	
+	/**
+	 * Send an event to each of the endpoints, as emitting it on each of them
+	 * would, except that the event is only encoded once. The event is not
+	 * emitted to the endpoints' own callbacks.
+	 * @param eventName
+	 * @param eventData
+	 * @param recipients
+	 * @return the endpoints the event could not be sent to, and why
+	 */
+	public Map<Endpoint,String> broadcast(String eventName,String eventData,
+			Collection<? extends Endpoint> recipients) {
+		return broadcast(eventName,eventData,recipients,null);
+	}
+	
+	/**
+	 * Send an event to each of the endpoints that is included, as for
+	 * {@link #broadcast(String, String, Collection)}.
+	 * @param eventName
+	 * @param eventData
+	 * @param recipients
+	 * @param include which of the recipients to send to, e.g. all but the
+	 * endpoint the event came from
+	 * @return the endpoints the event could not be sent to, and why
+	 */
+	public Map<Endpoint,String> broadcast(String eventName,String eventData,
+			Collection<? extends Endpoint> recipients,Predicate<? super Endpoint> include) {
+		return new EventBroadcast(eventName,eventData).sendTo(recipients,include);
+	}
+	
 	/**
 	 * Shut this manager down, closing all connections gracefully where possible.
 	 */
@@ -1,11 +1,15 @@
 package pb.managers;
 
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.EndpointConfig;
 
 
 
@@ -88,6 +92,18 @@ public class PeerManager extends Manager {
 		this.myServerPort=myServerPort;
 	}
 	
+	/**
+	 * Initialize with a port for the server manager for this peer
+	 * to use and the config to use for all of the peer's endpoints, both
+	 * those accepted by the server manager and those of client managers.
+	 * @param myServerPort
+	 * @param endpointConfig
+	 */
+	public PeerManager(int myServerPort,EndpointConfig endpointConfig) {
+		this(myServerPort);
+		this.endpointConfig=endpointConfig;
+	}
+	
 	/**
 	 * 
 	 * @return the server manager for this peer
@@ -106,7 +122,7 @@ public class PeerManager extends Manager {
 	 * @return the client manager for the new connection
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
-		ClientManager clientManager = new ClientManager(host,serverPort);
+		ClientManager clientManager = new ClientManager(host,serverPort,endpointConfig);
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -121,6 +137,24 @@ public class PeerManager extends Manager {
 		return clientManager;
 	}
 	
+	/**
+	 * Send an event to every other peer connected to this peer's server
+	 * manager that is included, see
+	 * {@link pb.managers.ServerManager#broadcast(String, String, Predicate)}.
+	 * Peers that this peer connected to are sent events with
+	 * {@link pb.managers.Manager#broadcast(String, String, java.util.Collection)}.
+	 * @param eventName
+	 * @param eventData
+	 * @param include which endpoints to send to, e.g. all but the endpoint
+	 * the event came from
+	 * @return the endpoints the event could not be sent to, and why
+	 */
+	public Map<Endpoint,String> broadcast(String eventName,String eventData,
+			Predicate<? super Endpoint> include) {
+		if(serverManager==null) return new HashMap<>();
+		return serverManager.broadcast(eventName,eventData,include);
+	}
+	
 	/**
 	 * Close the server and all remaining connections.
 	 * We will do a graceful shutdown here, to allow any other peers that
@@ -138,7 +172,7 @@ public class PeerManager extends Manager {
 	@Override
 	public void run() {
 		// initialize a server manager for other peers to connect to
-		serverManager=new ServerManager(myServerPort);
+		serverManager=new ServerManager(myServerPort,endpointConfig);
 		// setup the callbacks for when another peer connects to this peer
 		serverManager.on(ServerManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
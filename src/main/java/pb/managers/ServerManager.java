@@ -2,11 +2,17 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.EndpointConfig;
+import pb.managers.endpoint.NioEndpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
@@ -15,7 +21,10 @@ import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.rpc.IRpcProtocolHandler;
+import pb.protocols.rpc.RpcProtocol;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.EventKey;
 
 
 /**
@@ -30,7 +39,7 @@ import pb.protocols.session.SessionProtocol;
  *
  */
 public class ServerManager extends Manager implements ISessionProtocolHandler,
-	IKeepAliveProtocolHandler, IEventProtocolHandler
+	IKeepAliveProtocolHandler, IEventProtocolHandler, IRpcProtocolHandler
 {
 	private static Logger log = Logger.getLogger(ServerManager.class.getName());
 	
@@ -45,6 +54,11 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * </ul>
 	 */
 	public static final String sessionStarted="SESSION_STARTED";
+
+	/**
+	 * The key for {@link #sessionStarted}, the payload is the endpoint.
+	 */
+	public static final EventKey<Endpoint> sessionStartedKey=EventKey.of(sessionStarted);
 	
 	/**
 	 * Emitted when a session has stopped and can longer be used.
@@ -53,6 +67,11 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * </ul>
 	 */
 	public static final String sessionStopped="SESSION_STOPPED";
+
+	/**
+	 * The key for {@link #sessionStopped}, the payload is the endpoint.
+	 */
+	public static final EventKey<Endpoint> sessionStoppedKey=EventKey.of(sessionStopped);
 	
 	/**
 	 * Emitted when a session has stopped in error and can no longer
@@ -62,6 +81,11 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * </ul>
 	 */
 	public static final String sessionError="SESSION_ERROR";
+
+	/**
+	 * The key for {@link #sessionError}, the payload is the endpoint.
+	 */
+	public static final EventKey<Endpoint> sessionErrorKey=EventKey.of(sessionError);
 	
 	/**
 	 * Emitted when a session should shutdown. Message is reason
@@ -95,7 +119,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * The io thread accepts connections and informs the server manager
 	 * of the connection's socket.
 	 */
-	private IOThread ioThread;
+	private volatile IOThread ioThread;
 	
 	/**
 	 * Keep a track of endpoints that
@@ -148,6 +172,29 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on
+	 * and the config to use for client endpoints, e.g. to select the NIO engine.
+	 * @param port to use when creating the io thread
+	 * @param endpointConfig config for client endpoints
+	 */
+	public ServerManager(int port,EndpointConfig endpointConfig) {
+		this(port);
+		this.endpointConfig = endpointConfig;
+	}
+	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on,
+	 * a password and the config to use for client endpoints.
+	 * @param port to use when creating the io thread
+	 * @param password to use by admin clients
+	 * @param endpointConfig config for client endpoints
+	 */
+	public ServerManager(int port,String password,EndpointConfig endpointConfig) {
+		this(port,password);
+		this.endpointConfig = endpointConfig;
+	}
+	
 	/**
 	 * Usually a single shutdown method would suffice, but for servers
 	 * it is convenient to have different methods, depending on how the
@@ -174,6 +221,14 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		ioThread.shutDown();
 	}
 	
+	/**
+	 * @return the io thread accepting connections, which also has the accept
+	 * rate and latency, or null if the server has not started listening
+	 */
+	public IOThread getIOThread() {
+		return ioThread;
+	}
+	
 	/**
 	 * Convenience wrapper
 	 * @return the number of live endpoints
@@ -184,6 +239,28 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		}
 	}
 	
+	/**
+	 * Send an event to every live endpoint whose session has started and
+	 * that is included, as for
+	 * {@link pb.managers.Manager#broadcast(String, String, java.util.Collection)}.
+	 * @param eventName
+	 * @param eventData
+	 * @param include which endpoints to send to, e.g. all but the endpoint
+	 * the event came from
+	 * @return the endpoints the event could not be sent to, and why
+	 */
+	public Map<Endpoint,String> broadcast(String eventName,String eventData,
+			Predicate<? super Endpoint> include) {
+		List<Endpoint> recipients;
+		synchronized(liveEndpoints) {
+			recipients = new ArrayList<>(liveEndpoints.size());
+			for(Endpoint endpoint : liveEndpoints) {
+				if(endpoint.getProtocol(EventProtocol.protocolName)!=null) recipients.add(endpoint);
+			}
+		}
+		return broadcast(eventName,eventData,recipients,include);
+	}
+	
 	@Override
 	public void run() {
 		log.info("started");
@@ -262,13 +339,22 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	}
 	
 	/**
-	 * A new client has connected to the server. We need to keep
+	 * A new client has connected to the server, called by one of the io
+	 * thread's setup threads. We need to keep
 	 * a set of all clients that have connected, so that we can
 	 * do global operations, like broadcast data to all clients.
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
-		Endpoint endpoint = new Endpoint(clientSocket,this);
+		Endpoint endpoint;
+		if(endpointConfig.getEngine()==EndpointConfig.Engine.NIO) {
+			// the io thread accepts on a channel when using this engine
+			endpoint = new NioEndpoint(clientSocket.getChannel(),this,endpointConfig);
+		} else {
+			endpoint = new Endpoint(clientSocket,this,endpointConfig);
+		}
+		// clients may not have been upgraded to the configured framing
+		endpoint.detectFraming();
 		endpoint.start();
 	}
 	
@@ -317,13 +403,16 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			});
 		}
 		
-		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
-		try {
-			// we need to add it to the endpoint before starting it
-			endpoint.handleProtocol(keepAliveProtocol);
-			keepAliveProtocol.startAsServer();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm... already requested by the client
+		// streams are kept alive by their connection
+		if(!endpoint.isStream()) {
+			KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
+			try {
+				// we need to add it to the endpoint before starting it
+				endpoint.handleProtocol(keepAliveProtocol);
+				keepAliveProtocol.startAsServer();
+			} catch (ProtocolAlreadyRunning e) {
+				// hmmm... already requested by the client
+			}
 		}
 		SessionProtocol sessionProtocol = new SessionProtocol(endpoint,this);
 		try {
@@ -372,9 +461,18 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
+		// and the rpc protocol, so that methods can be registered on it
+		RpcProtocol rpcProtocol = new RpcProtocol(endpoint,this);
+		try {
+			endpoint.handleProtocol(rpcProtocol);
+			rpcProtocol.startAsServer();
+		} catch (ProtocolAlreadyRunning e) {
+			// hmmm... already requested by the client
+		}
+		
 		// the event protocol has started but still no events
 		// could have been received at this point
-		localEmit(sessionStarted,endpoint);
+		localEmit(sessionStartedKey,endpoint);
 		
 	}
 
@@ -389,7 +487,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
 		
-		localEmit(sessionStopped,endpoint);
+		localEmit(sessionStoppedKey,endpoint);
 		
 		// we can now signal the client endpoint to close and forget this client
 		endpoint.close(); // will stop all remaining protocols
@@ -434,7 +532,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" violated the protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		localEmit(sessionErrorKey,endpoint);
 		endpoint.close();
 	}
 	
@@ -447,7 +545,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("client disconnected abruptly "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		localEmit(sessionErrorKey,endpoint);
 		endpoint.close();
 	}
 	
@@ -459,7 +557,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("client sent an invalid message "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		localEmit(sessionErrorKey,endpoint);
 		endpoint.close();
 	}
 
@@ -472,7 +570,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" has timed out on protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		localEmit(sessionErrorKey,endpoint);
 		endpoint.close();
 	}
 
@@ -0,0 +1,282 @@
+package pb.managers.endpoint;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the frames of one connection. Each direction is a
+ * single deflate stream that is flushed at the end of every frame, so a
+ * frame can be inflated as soon as it arrives while still being compressed
+ * against everything sent before it, and both ends start from the same preset
+ * dictionary of the strings every message carries. Board snapshots and file
+ * chunks repeat a lot of what was sent before them, which a frame compressed
+ * on its own could not take advantage of.
+ * <br/>
+ * Frames have to be compressed in the order they are written, so
+ * {@link pb.managers.endpoint.OutboundQueue} compresses them as it hands them
+ * to the writer, and frames are inflated in the order they are received. A
+ * compressed frame is a marker followed by the deflated bytes, without the
+ * four bytes that every flush ends with. Frames smaller than the configured
+ * threshold are sent as they are.
+ *
+ * @see {@link pb.managers.endpoint.EndpointConfig#setCompression(boolean)}
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @author aaron
+ *
+ */
+final class Compression {
+
+	/**
+	 * First byte of a compressed frame, followed by the deflated payload.
+	 */
+	static final byte compressedFrame = (byte)0xB8;
+
+	/**
+	 * What every sync flush ends with, left off on the wire.
+	 */
+	private static final byte[] flushTail = {0,0,(byte)0xFF,(byte)0xFF};
+
+	/**
+	 * Strings that most messages contain, the most common last.
+	 */
+	private static final byte[] dictionary = ("{\"name\":\"SessionStartRequest\",\"protocolName\":\"SessionProtocol\""
+			+ ",\"type\":\"Request\",\"codecs\":\"binary,json\",\"streamWindow\":\"SessionStopRequest\""
+			+ "\"KeepAliveRequest\",\"protocolName\":\"KeepAliveProtocol\",\"type\":\"Reply\""
+			+ "\"RpcRequest\",\"protocolName\":\"RpcProtocol\",\"method\":\"arguments\":[\"result\":"
+			+ "\"EventBatch\",\"events\":[{\"unacknowledged\":true,\"windowed\":true"
+			+ ",\"timeoutId\":\"EventReply\",\"protocolName\":\"EventProtocol\",\"type\":\"Reply\",\"timeoutId\":"
+			+ "{\"name\":\"EventRequest\",\"protocolName\":\"EventProtocol\",\"type\":\"Request\""
+			+ ",\"eventName\":\"eventData\":\"").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Used to measure the time spent compressing, in CPU time when the JVM
+	 * can measure it for the current thread.
+	 */
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+
+	/**
+	 * Output buffers are kept for the next frame if they are no larger
+	 * than this.
+	 */
+	private static final int keptBufferSize = 256*1024;
+
+	private final int threshold;
+	private final int maxFrameSize;
+
+	/**
+	 * Only used by the writer, guarded by deflating, null once ended.
+	 */
+	private final Object deflating = new Object();
+	private Deflater deflater;
+	private byte[] deflated = new byte[8*1024];
+
+	/**
+	 * Only used by the reader, guarded by inflating, null once ended.
+	 */
+	private final Object inflating = new Object();
+	private Inflater inflater;
+	private byte[] inflated = new byte[8*1024];
+
+	private final AtomicLong bytesCompressed = new AtomicLong(0);
+	private final AtomicLong bytesDeflated = new AtomicLong(0);
+	private final AtomicLong bytesInflated = new AtomicLong(0);
+	private final AtomicLong bytesReceived = new AtomicLong(0);
+	private final AtomicLong deflateNanos = new AtomicLong(0);
+	private final AtomicLong inflateNanos = new AtomicLong(0);
+
+	/**
+	 * Initialise both directions with the settings of a config.
+	 * @param config
+	 */
+	Compression(EndpointConfig config) {
+		threshold = config.getCompressionThreshold();
+		maxFrameSize = config.getMaxFrameSize();
+		deflater = new Deflater(config.getCompressionLevel(),true);
+		deflater.setDictionary(dictionary);
+		inflater = new Inflater(true);
+		inflater.setDictionary(dictionary);
+	}
+
+	/**
+	 * @param length of a payload
+	 * @return true if the payload is worth compressing, and will still fit
+	 * in a frame if it does not compress
+	 */
+	boolean shouldCompress(int length) {
+		return length>=threshold && length<=maxFrameSize-(maxFrameSize>>>10)-16;
+	}
+
+	/**
+	 * Compress a payload and frame it. Must be called in the order the
+	 * frames are written.
+	 * @param payload
+	 * @return the frame, ready to write
+	 */
+	ByteBuffer deflate(ByteBuffer payload) {
+		int length = payload.remaining();
+		long start = now();
+		synchronized(deflating) {
+			if(deflater==null) {
+				// the connection has closed, nothing more will be written
+				return ByteBuffer.allocate(0);
+			}
+			deflater.setInput(payload.array(),payload.arrayOffset()+payload.position(),length);
+			int size=0;
+			while(true) {
+				size+=deflater.deflate(deflated,size,deflated.length-size,Deflater.SYNC_FLUSH);
+				if(size<deflated.length) break;
+				byte[] larger = new byte[deflated.length*2];
+				System.arraycopy(deflated,0,larger,0,size);
+				deflated=larger;
+			}
+			size-=flushTail.length;
+			ByteBuffer frame = ByteBuffer.allocate(Framing.varintSize(size+1)+1+size);
+			Framing.putVarint(frame,size+1);
+			frame.put(compressedFrame);
+			frame.put(deflated,0,size);
+			frame.flip();
+			if(deflated.length>keptBufferSize) deflated = new byte[8*1024];
+			bytesCompressed.addAndGet(length);
+			bytesDeflated.addAndGet(size+1);
+			deflateNanos.addAndGet(now()-start);
+			return frame;
+		}
+	}
+
+	/**
+	 * Inflate a compressed frame. Must be called in the order the frames are
+	 * received. The bytes returned are only valid until the next frame is
+	 * inflated.
+	 * @param array
+	 * @param offset of the frame, at its marker
+	 * @param length of the frame
+	 * @return the payload
+	 * @throws InvalidFrame if the frame can not be inflated or inflates to
+	 * more than the maximum frame size
+	 */
+	ByteBuffer inflate(byte[] array, int offset, int length) throws InvalidFrame {
+		long start = now();
+		synchronized(inflating) {
+			if(inflater==null) throw new InvalidFrame("compressed frame received after the connection closed");
+			inflater.setInput(array,offset+1,length-1);
+			int size = inflate(0);
+			inflater.setInput(flushTail);
+			size = inflate(size);
+			ByteBuffer payload = ByteBuffer.wrap(inflated,0,size);
+			if(inflated.length>keptBufferSize) inflated = new byte[8*1024];
+			bytesReceived.addAndGet(length);
+			bytesInflated.addAndGet(size);
+			inflateNanos.addAndGet(now()-start);
+			return payload;
+		}
+	}
+
+	/**
+	 * Inflate all of the current input.
+	 * @param size of what has been inflated so far
+	 * @return the size of what has been inflated
+	 * @throws InvalidFrame
+	 */
+	private int inflate(int size) throws InvalidFrame {
+		try {
+			while(true) {
+				if(size==inflated.length) {
+					if(size>=maxFrameSize) throw new InvalidFrame("compressed frame inflates past the maximum frame size "+maxFrameSize);
+					byte[] larger = new byte[(int)Math.min((long)size*2,maxFrameSize)];
+					System.arraycopy(inflated,0,larger,0,size);
+					inflated=larger;
+				}
+				int count = inflater.inflate(inflated,size,inflated.length-size);
+				size+=count;
+				if(count==0) {
+					if(inflater.needsInput()) return size;
+					throw new InvalidFrame("compressed frame is not a flushed deflate stream");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new InvalidFrame("compressed frame is corrupt: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Free the deflater and inflater, after which nothing can be compressed
+	 * or inflated.
+	 */
+	void end() {
+		synchronized(deflating) {
+			if(deflater!=null) deflater.end();
+			deflater=null;
+		}
+		synchronized(inflating) {
+			if(inflater!=null) inflater.end();
+			inflater=null;
+		}
+	}
+
+	/**
+	 * @param array
+	 * @param offset
+	 * @param length
+	 * @return true if the payload is a compressed frame
+	 */
+	static boolean isCompressed(byte[] array, int offset, int length) {
+		return length>0 && array[offset]==compressedFrame;
+	}
+
+	/**
+	 * @return the payload bytes that have been compressed
+	 */
+	long getBytesCompressed() {
+		return bytesCompressed.get();
+	}
+
+	/**
+	 * @return the bytes the compressed payloads took on the wire
+	 */
+	long getBytesDeflated() {
+		return bytesDeflated.get();
+	}
+
+	/**
+	 * @return the compressed bytes that have been received
+	 */
+	long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return the payload bytes they inflated to
+	 */
+	long getBytesInflated() {
+		return bytesInflated.get();
+	}
+
+	/**
+	 * @return the time in ns spent compressing
+	 */
+	long getDeflateNanos() {
+		return deflateNanos.get();
+	}
+
+	/**
+	 * @return the time in ns spent inflating
+	 */
+	long getInflateNanos() {
+		return inflateNanos.get();
+	}
+
+	/**
+	 * @return the CPU time of the current thread if it can be measured,
+	 * otherwise the wall clock time, in ns
+	 */
+	private static long now() {
+		return cpuTime?threads.getCurrentThreadCpuTime():System.nanoTime();
+	}
+}
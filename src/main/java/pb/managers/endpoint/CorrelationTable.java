@@ -0,0 +1,273 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+import pb.utils.Timeout;
+import pb.utils.Utils;
+
+/**
+ * The requests an endpoint has sent and is waiting for replies to, by their
+ * timeout id. Ids come from an atomic counter, so sending does not need the
+ * endpoint's lock, and the pending requests are kept in an open addressing
+ * hash table of primitive longs, so adding and removing one allocates
+ * nothing.
+ * <br/>
+ * Rather than a timeout per request, the table has a single timeout for the
+ * earliest deadline of any pending request. When it fires every request that
+ * is due is timed out, and the timeout is set again for the earliest deadline
+ * left. Requests are nearly always sent with the same time interval, so a new
+ * request is almost never due before the timeout that is already set.
+ * <br/>
+ * A pending request can carry an attachment, such as the future to complete
+ * when its reply arrives, which is handed back when it is taken out.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#sendWithTimeout(pb.protocols.Message, ICallback, int)}
+ * @author aaron
+ *
+ */
+public class CorrelationTable {
+	private static Logger log = Logger.getLogger(CorrelationTable.class.getName());
+
+	/**
+	 * Ids are never 0, which marks an empty slot.
+	 */
+	private static final long empty = 0;
+
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	// the table, guarded by this
+	private long[] ids = new long[16];
+	private long[] sentAt = new long[16];
+	private long[] deadlines = new long[16];
+	private ICallback[] callbacks = new ICallback[16];
+	private Object[] attachments = new Object[16];
+	private int size=0;
+
+	/**
+	 * The deadline the timer is set for, or Long.MAX_VALUE if it is not set.
+	 */
+	private long timerDeadline = Long.MAX_VALUE;
+	private Timeout timer;
+
+	/**
+	 * @return a new id, ids are given out in increasing order
+	 */
+	public long nextId() {
+		return nextId.getAndIncrement();
+	}
+
+	/**
+	 * Add a pending request with a new id.
+	 * @param callback to call if the request is not removed in time
+	 * @param timeInterval ms that the request has before it times out
+	 * @return the id of the request
+	 */
+	public long add(ICallback callback,long timeInterval) {
+		long id = nextId();
+		add(id,callback,timeInterval,null);
+		return id;
+	}
+
+	/**
+	 * Add a pending request with an id that was given out already.
+	 * @param id of the request, which must not be pending
+	 * @param callback to call if the request is not taken out in time
+	 * @param timeInterval ms that the request has before it times out
+	 * @param attachment to hand back when the request is taken out, may be null
+	 */
+	public void add(long id,ICallback callback,long timeInterval,Object attachment) {
+		long now = System.currentTimeMillis();
+		long deadline = now+timeInterval;
+		synchronized(this) {
+			if(size+1>ids.length/2) resize(ids.length*2);
+			int i = slot(id);
+			while(ids[i]!=empty) i=(i+1)&(ids.length-1);
+			ids[i]=id;
+			sentAt[i]=now;
+			deadlines[i]=deadline;
+			callbacks[i]=callback;
+			attachments[i]=attachment;
+			size++;
+			if(deadline<timerDeadline) schedule(deadline,now);
+		}
+	}
+
+	/**
+	 * Remove a pending request, typically because its reply arrived.
+	 * @param id of the request
+	 * @return true if the request was pending
+	 */
+	public synchronized boolean remove(long id) {
+		int i = find(id);
+		if(i<0) return false;
+		delete(i);
+		return true;
+	}
+
+	/**
+	 * Take out a pending request, typically because its reply arrived.
+	 * @param id of the request
+	 * @return the request's attachment, or null if it was not pending
+	 */
+	public synchronized Object take(long id) {
+		int i = find(id);
+		if(i<0) return null;
+		Object attachment = attachments[i];
+		delete(i);
+		return attachment;
+	}
+
+	/**
+	 * Forget every pending request, without calling their callbacks.
+	 * @return the attachments of the requests that were pending
+	 */
+	public synchronized ArrayList<Object> clear() {
+		ArrayList<Object> pending = new ArrayList<>();
+		for(int i=0;i<ids.length;i++) {
+			if(ids[i]!=empty && attachments[i]!=null) pending.add(attachments[i]);
+			ids[i]=empty;
+			callbacks[i]=null;
+			attachments[i]=null;
+		}
+		size=0;
+		if(timer!=null) timer.cancel();
+		timer=null;
+		timerDeadline=Long.MAX_VALUE;
+		return pending;
+	}
+
+	/**
+	 * @return the number of requests waiting for a reply
+	 */
+	public synchronized int getPending() {
+		return size;
+	}
+
+	/**
+	 * @return the time in ms that the oldest pending request has been
+	 * waiting for a reply, or 0 if there is none
+	 */
+	public synchronized long getOldestAge() {
+		long oldest = Long.MAX_VALUE;
+		for(int i=0;i<ids.length;i++) {
+			if(ids[i]!=empty && sentAt[i]<oldest) oldest=sentAt[i];
+		}
+		return oldest==Long.MAX_VALUE?0:System.currentTimeMillis()-oldest;
+	}
+
+	/**
+	 * Time out every request that is due, then set the timer for the
+	 * earliest deadline left.
+	 */
+	private void expire() {
+		ArrayList<ICallback> due = new ArrayList<>();
+		synchronized(this) {
+			timer=null;
+			timerDeadline=Long.MAX_VALUE;
+			long now = System.currentTimeMillis();
+			long earliest = Long.MAX_VALUE;
+			int i=0;
+			while(i<ids.length) {
+				if(ids[i]!=empty && deadlines[i]<=now) {
+					due.add(callbacks[i]);
+					// deleting may move a later entry into this slot
+					delete(i);
+					continue;
+				}
+				if(ids[i]!=empty && deadlines[i]<earliest) earliest=deadlines[i];
+				i++;
+			}
+			if(earliest!=Long.MAX_VALUE) schedule(earliest,now);
+		}
+		for(ICallback callback : due) {
+			try {
+				callback.callback();
+			} catch (RuntimeException e) {
+				log.severe("timeout callback failed: "+e);
+			}
+		}
+	}
+
+	/**
+	 * Set the timer, called with the table locked.
+	 */
+	private void schedule(long deadline,long now) {
+		if(timer!=null) timer.cancel();
+		timerDeadline=deadline;
+		timer=Utils.getInstance().setTimeout(()->{expire();},Math.max(deadline-now,0));
+	}
+
+	/**
+	 * @return the slot holding the id, or -1 if it is not pending
+	 */
+	private int find(long id) {
+		if(id==empty) return -1;
+		int i = slot(id);
+		while(ids[i]!=id) {
+			if(ids[i]==empty) return -1;
+			i=(i+1)&(ids.length-1);
+		}
+		return i;
+	}
+
+	private int slot(long id) {
+		// ids are sequential, spread them over the table
+		long h = id*0x9E3779B97F4A7C15L;
+		return (int)(h>>>32)&(ids.length-1);
+	}
+
+	/**
+	 * Empty a slot, moving back any later entries that probed past it so
+	 * that lookups still find them.
+	 */
+	private void delete(int i) {
+		int mask = ids.length-1;
+		ids[i]=empty;
+		callbacks[i]=null;
+		attachments[i]=null;
+		size--;
+		int j=i;
+		while(true) {
+			j=(j+1)&mask;
+			if(ids[j]==empty) return;
+			int home = slot(ids[j]);
+			// leave the entry if its home is cyclically in (i,j]
+			if(i<=j ? (i<home && home<=j) : (i<home || home<=j)) continue;
+			ids[i]=ids[j];
+			sentAt[i]=sentAt[j];
+			deadlines[i]=deadlines[j];
+			callbacks[i]=callbacks[j];
+			attachments[i]=attachments[j];
+			ids[j]=empty;
+			callbacks[j]=null;
+			attachments[j]=null;
+			i=j;
+		}
+	}
+
+	private void resize(int capacity) {
+		long[] oldIds = ids;
+		long[] oldSentAt = sentAt;
+		long[] oldDeadlines = deadlines;
+		ICallback[] oldCallbacks = callbacks;
+		Object[] oldAttachments = attachments;
+		ids = new long[capacity];
+		sentAt = new long[capacity];
+		deadlines = new long[capacity];
+		callbacks = new ICallback[capacity];
+		attachments = new Object[capacity];
+		for(int k=0;k<oldIds.length;k++) {
+			if(oldIds[k]==empty) continue;
+			int i = slot(oldIds[k]);
+			while(ids[i]!=empty) i=(i+1)&(capacity-1);
+			ids[i]=oldIds[k];
+			sentAt[i]=oldSentAt[k];
+			deadlines[i]=oldDeadlines[k];
+			callbacks[i]=oldCallbacks[k];
+			attachments[i]=oldAttachments[k];
+		}
+	}
+}
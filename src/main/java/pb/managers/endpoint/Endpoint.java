@@ -1,38 +1,66 @@
 package pb.managers.endpoint;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import pb.utils.EventKey;
 import pb.utils.Eventable;
+import pb.utils.Timeout;
 import pb.utils.Utils;
+import pb.protocols.Codec;
+import pb.protocols.EncodedMessage;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageHeader;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventDelivery;
 import pb.protocols.event.EventProtocol;
+import pb.protocols.event.IEventCallback;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.ICallback;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.rpc.IRpcProtocolHandler;
+import pb.protocols.rpc.RpcProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
 
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
- * Any number of protocols can be handled by the endpoint, but there can be only
- * one instance of each protocol running at a time.
+ * thread-per-connection model is being used. Sending does not block the
+ * caller: messages are put on an {@link pb.managers.endpoint.OutboundQueue}
+ * and a writer takes everything that has been queued and writes it to the
+ * socket with a single flush. Any number of protocols can be handled by the endpoint, but there can be only
+ * one instance of each protocol running at a time. The
+ * {@link pb.managers.endpoint.NioEndpoint} subclass provides the same
+ * endpoint on top of a selector instead of a thread. Further instances of the
+ * protocols can be run on {@link pb.managers.endpoint.StreamEndpoint}s,
+ * which share the endpoint's connection. The connection can be compressed,
+ * see {@link pb.managers.endpoint.EndpointConfig#setCompression(boolean)}.
  * 
  * @see {@link pb.managers.Manager}
+ * @see {@link pb.managers.endpoint.NioEndpoint}
+ * @see {@link pb.managers.endpoint.StreamEndpoint}
  * @see {@link pb.protocols.session.SessionProtocol}
  * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
  * @author aaron
@@ -41,25 +69,114 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Events emitted locally by the Endpoint
+	 */
+	
+	/**
+	 * Emitted when the endpoint's outbound queue has drained below its low
+	 * watermark after having been unwritable.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String writable="WRITABLE";
+	
+	/**
+	 * The key for {@link #writable}, the payload is the endpoint.
+	 */
+	public static final EventKey<Endpoint> writableKey=EventKey.of(writable);
+	
+	/**
+	 * Emitted when the endpoint's outbound queue reaches its high watermark,
+	 * after which the {@link pb.managers.endpoint.EndpointConfig.OverflowPolicy}
+	 * applies to what is sent until it is writable again.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String unwritable="UNWRITABLE";
+	
+	/**
+	 * The key for {@link #unwritable}, the payload is the endpoint.
+	 */
+	public static final EventKey<Endpoint> unwritableKey=EventKey.of(unwritable);
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
-	private Socket socket;
+	protected Socket socket;
 	
 	/**
 	 * The manager to report to when things happen.
 	 */
-	private IEndpointHandler manager;
+	protected IEndpointHandler manager;
 	
 	/**
-	 * The input data stream on the socket.
+	 * The input stream on the socket.
 	 */
-	private DataInputStream in=null;
+	private InputStream in=null;
 	
 	/**
-	 * The output data stream on the socket.
+	 * The config this endpoint was created with.
 	 */
-	private DataOutputStream out=null;
+	protected final EndpointConfig config;
+	
+	/**
+	 * The framing used to send messages.
+	 */
+	private volatile Framing framing;
+	
+	/**
+	 * The codec used to encode messages, JSON until the session agrees otherwise.
+	 */
+	private volatile Codec codec = Codec.JSON;
+	
+	/**
+	 * Splits received bytes into messages.
+	 */
+	protected final FrameDecoder decoder;
+	
+	/**
+	 * The buffered output stream on the socket, only used by the writer.
+	 */
+	private OutputStream out=null;
+	
+	/**
+	 * Size of the buffer used to coalesce queued frames into one write.
+	 */
+	private static final int writeBufferSize = 64*1024;
+	
+	/**
+	 * How long a closing endpoint waits for queued frames to be written
+	 * before closing the socket anyway.
+	 */
+	private static final int drainTimeout = 5000;
+	
+	/**
+	 * Writers for the thread-per-connection engine. A writer only exists
+	 * while an endpoint has something queued, so idle endpoints cost no thread.
+	 */
+	private static final ExecutorService writers = Executors.newCachedThreadPool((runnable)->{
+		Thread thread = new Thread(runnable,"EndpointWriter");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Frames waiting to be written to the socket.
+	 */
+	protected final OutboundQueue outbound;
+	
+	/**
+	 * Whether the socket has been closed.
+	 */
+	private final AtomicBoolean transportClosed;
+	
+	/**
+	 * Released when the socket has been closed.
+	 */
+	private final CountDownLatch terminated;
 	
 	/**
 	 * A protocol name to protocol map, of protocols in use.
@@ -67,14 +184,79 @@ public class Endpoint extends Eventable {
 	private Map<String,Protocol> protocols;
 	
 	/**
-	 * Timeout id to use.
+	 * Time in ms that bytes were last received from the other endpoint.
+	 */
+	private volatile long lastReceived = System.currentTimeMillis();
+	
+	/**
+	 * Time in ms that a frame was last queued to be sent to the other endpoint.
+	 */
+	private volatile long lastSent = System.currentTimeMillis();
+	
+	/**
+	 * Closes the transport if the outbound queue takes too long to drain.
+	 */
+	private volatile Timeout drainTimer;
+	
+	/**
+	 * Requests waiting for replies, which also hands out the timeout ids.
+	 */
+	private final CorrelationTable outstanding;
+	
+	/**
+	 * Held while a message is given the next timeout id and queued, so that
+	 * the ids go out in order. Never held while waiting for room.
 	 */
-	private long timeoutId=1;
+	private final Object sendOrder = new Object();
 	
 	/**
-	 * Oustanding ids
+	 * The lane that each protocol's messages are sent on.
 	 */
-	private Set<Long> outstandingIds;
+	private final Map<String,Lane> lanes = new ConcurrentHashMap<>();
+	
+	/**
+	 * Names of the events that are sent unacknowledged.
+	 */
+	private final Set<String> unacknowledged = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Streams open on this connection, by id.
+	 */
+	private final Map<Integer,StreamEndpoint> streams = new ConcurrentHashMap<>();
+	
+	/**
+	 * The highest stream id used so far, ids are never used twice. Guarded
+	 * by streams.
+	 */
+	private int lastStreamId=0;
+	
+	/**
+	 * The window the other endpoint gives each stream, 0 if it has not
+	 * agreed to streams.
+	 */
+	private volatile long peerStreamWindow=0;
+	
+	/**
+	 * Whether this endpoint opens the streams, or the other endpoint does.
+	 */
+	private volatile boolean opensStreams=false;
+	
+	/**
+	 * Compresses and inflates the frames of this connection, null until
+	 * compression has been offered or agreed to.
+	 */
+	private volatile Compression compression;
+	
+	/**
+	 * Whether payloads sent are compressed, once the other endpoint has
+	 * agreed to it.
+	 */
+	private volatile boolean compressing=false;
+	
+	/**
+	 * Messages refused because the endpoint was unwritable.
+	 */
+	private final AtomicLong rejected = new AtomicLong(0);
 	
 	/**
 	 * stopped flag
@@ -82,65 +264,536 @@ public class Endpoint extends Eventable {
 	private volatile boolean stopped=true; // the use of send will return false always
 	
 	/**
-	 * Initialise the endpoint with a socket and a manager.
+	 * Initialise the endpoint with a socket and a manager, using the default config.
 	 * @param socket
 	 * @param manager
 	 */
 	public Endpoint(Socket socket, IEndpointHandler manager) {
+		this(socket,manager,new EndpointConfig());
+	}
+	
+	/**
+	 * Initialise the endpoint with a socket, a manager and a config.
+	 * @param socket
+	 * @param manager
+	 * @param config
+	 */
+	public Endpoint(Socket socket, IEndpointHandler manager, EndpointConfig config) {
 		this.socket = socket;
 		this.manager = manager;
+		this.config = config;
+		framing = config.getFraming();
+		decoder = new FrameDecoder(framing,config.getMaxFrameSize());
 		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
+		outstanding = new CorrelationTable();
+		outbound = new OutboundQueue(config);
+		transportClosed = new AtomicBoolean(false);
+		terminated = new CountDownLatch(1);
+		outbound.setWritabilityListener((nowWritable)->{writabilityChanged(nowWritable);});
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * Send a Message on the socket for this endpoint. The message is queued
+	 * and the method returns immediately, it is written to the socket by the
+	 * endpoint's writer in the order it was queued with respect to the other
+	 * messages of its protocol's {@link pb.managers.endpoint.Lane}.
+	 * @param msg
+	 * @return true if the message was queued for sending, false otherwise
+	 */
+	public boolean send(Message msg) {
+		return enqueue(msg,null);
+	}
+	
+	/**
+	 * Send a Message on the socket for this endpoint, as for {@link #send(Message)}.
+	 * @param msg
+	 * @return a future that completes with true once the message has been
+	 * written to the socket, or false if it never will be
+	 */
+	public CompletableFuture<Boolean> sendAsync(Message msg) {
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		enqueue(msg,future);
+		return future;
+	}
+	
+	/**
+	 * Frame the message and put it on the outbound queue, scheduling
+	 * a writer if there is not one already.
+	 * @param msg
+	 * @param future to complete when written, may be null
+	 * @return true if the message was queued
+	 */
+	private boolean enqueue(Message msg,CompletableFuture<Boolean> future) {
+		if(stopped) {
+			if(future!=null) future.complete(false);
+			return false;
+		}
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		Lane lane = lanes.getOrDefault(msg.getProtocolName(),Lane.INTERACTIVE);
+		byte[] payload = codec.encode(msg);
+		if(!admit(msg,lane,payload.length,future)) return false;
+		return write(payload,lane,future);
+	}
+	
+	/**
+	 * Put a message that has already been encoded on the outbound queue, as
+	 * for {@link #enqueue(Message, CompletableFuture)}. Without a timeout id,
+	 * the frame that every other endpoint with the same codec and framing is
+	 * sent is queued as it is, unless this endpoint has to compress it or
+	 * wrap it in a frame of its own.
+	 * @param encoded
+	 * @param timeoutId to send the message with, 0 for none
+	 * @param future to complete when written, may be null
+	 * @return true if the message was queued
+	 */
+	private boolean enqueue(EncodedMessage encoded,long timeoutId,CompletableFuture<Boolean> future) {
+		Message msg = encoded.getMessage();
+		if(stopped) {
+			if(future!=null) future.complete(false);
+			return false;
+		}
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		Lane lane = lanes.getOrDefault(msg.getProtocolName(),Lane.INTERACTIVE);
+		Codec codec = this.codec;
+		if(timeoutId!=0 || compressing || isStream()) {
+			byte[] payload = encoded.getPayload(codec,timeoutId);
+			if(!admit(msg,lane,payload.length,future)) return false;
+			return write(payload,lane,future);
+		}
+		ByteBuffer frame;
+		try {
+			frame = encoded.getFrame(codec,framing,config.getMaxFrameSize());
+		} catch (IOException e) {
+			log.severe("message can not be sent: "+e.getMessage());
+			if(future!=null) future.complete(false);
+			return false;
+		}
+		if(!admit(msg,lane,frame.remaining(),future)) return false;
+		if(outbound.offer(frame,lane,future,null,lane!=Lane.CONTROL)) scheduleWrite();
+		lastSent = System.currentTimeMillis();
+		return true;
+	}
+	
+	/**
+	 * Check that a message can be sent, applying the overflow policy if the
+	 * endpoint is unwritable. Messages on the control lane are always sent.
 	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * @param lane of the message
+	 * @param size of the message
+	 * @param future completed with false if the message is refused, may be null
+	 * @return true if the message can be sent
+	 */
+	private boolean admit(Message msg,Lane lane,int size,CompletableFuture<Boolean> future) {
+		if(lane==Lane.CONTROL || isWritable() || overflow(lane,size)) return true;
+		log.warning("refused "+msg.getName()+" for protocol "+msg.getProtocolName()
+			+", the endpoint is unwritable: "+getOtherEndpointId());
+		rejected.incrementAndGet();
+		if(future!=null) future.complete(false);
+		return false;
+	}
+	
+	/**
+	 * Apply the overflow policy to a message sent while the endpoint is
+	 * unwritable.
+	 * @param lane of the message
+	 * @param size of the message
+	 * @return true if the message can be sent
 	 */
-	public synchronized boolean send(Message msg) {
-		if(stopped) return false;
+	private boolean overflow(Lane lane,int size) {
+		switch(config.getOverflowPolicy()) {
+		case BLOCK:
+			// the loop would be waiting for itself to write
+			return !SelectorLoop.isLoopThread() && awaitWritable(config.getOverflowTimeout());
+		case DROP_OLDEST:
+			return dropOldest(lane,size);
+		case DISCONNECT:
+		default:
+			disconnectSlow();
+			return false;
+		}
+	}
+	
+	/**
+	 * @return false from when the bytes waiting to be written reach the high
+	 * watermark until they fall below the low watermark
+	 */
+	public boolean isWritable() {
+		return outbound.isWritable();
+	}
+	
+	/**
+	 * Wait for the endpoint to become writable.
+	 * @param timeout in ms
+	 * @return true if the endpoint is writable
+	 */
+	protected boolean awaitWritable(long timeout) {
+		return outbound.awaitWritable(timeout);
+	}
+	
+	/**
+	 * Drop the oldest messages waiting on a lane to make room for another.
+	 * @param lane
+	 * @param size of the message to make room for
+	 * @return true if there is room for the message
+	 */
+	protected boolean dropOldest(Lane lane,int size) {
+		return outbound.dropOldest(lane,size);
+	}
+	
+	/**
+	 * Disconnect the other endpoint, which is not keeping up with what is sent.
+	 */
+	protected void disconnectSlow() {
+		log.warning("disconnecting, the other endpoint is not keeping up: "+getOtherEndpointId());
+		transportFailed();
+	}
+	
+	/**
+	 * Tell the callbacks that the endpoint has become writable or unwritable.
+	 * @param nowWritable
+	 */
+	protected void writabilityChanged(boolean nowWritable) {
+		if(nowWritable) {
+			localEmit(writableKey,this);
+		} else {
+			log.warning("endpoint is unwritable: "+getOtherEndpointId());
+			localEmit(unwritableKey,this);
+		}
+	}
+	
+	/**
+	 * Frame an encoded message and put it on the outbound queue, scheduling
+	 * a writer if there is not one already.
+	 * @param payload
+	 * @param lane
+	 * @param future to complete when written, may be null
+	 * @return true if the message was queued
+	 */
+	protected boolean write(byte[] payload,Lane lane,CompletableFuture<Boolean> future) {
+		// a stream's frames are held back by its window rather than dropped
+		boolean droppable = lane!=Lane.CONTROL && !StreamEndpoint.isStreamFrame(payload,0,payload.length);
+		Compression compression = compressing?this.compression:null;
+		if(compression!=null && compression.shouldCompress(payload.length)) {
+			// framed once compressed, in the order it is written
+			if(outbound.offer(ByteBuffer.wrap(payload),lane,future,compression,droppable)) scheduleWrite();
+			lastSent = System.currentTimeMillis();
+			return true;
+		}
+		ByteBuffer frame;
 		try {
-			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			frame = framing.encode(payload,config.getMaxFrameSize());
 		} catch (IOException e) {
-			manager.endpointDisconnectedAbruptly(this);
+			log.severe("message can not be sent: "+e.getMessage());
+			if(future!=null) future.complete(false);
 			return false;
 		}
+		if(outbound.offer(frame,lane,future,null,droppable)) scheduleWrite();
+		lastSent = System.currentTimeMillis();
 		return true;
 	}
 	
+	/**
+	 * Have every message sent from now on written after every message that
+	 * has been sent already, whatever their lanes. For messages that the
+	 * other endpoint must not see before the ones sent ahead of them, such
+	 * as a session stop request.
+	 */
+	public void barrier() {
+		outbound.barrier();
+	}
+	
+	/**
+	 * @return the config this endpoint was created with
+	 */
+	public EndpointConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * @return the time in ms that bytes were last received from the other endpoint
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	
+	/**
+	 * @return the time in ms that a frame was last queued to be sent to the
+	 * other endpoint
+	 */
+	public long getLastSent() {
+		return lastSent;
+	}
+	
+	/**
+	 * @return the framing used to send messages
+	 */
+	public Framing getFraming() {
+		return framing;
+	}
+	
+	/**
+	 * @return the codec used to encode messages sent
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Encode messages sent from now on with the given codec. The other endpoint
+	 * must have agreed to it, see {@link pb.protocols.session.SessionProtocol}.
+	 * @param codec
+	 */
+	public void setCodec(Codec codec) {
+		this.codec = codec;
+	}
+	
+	/**
+	 * Used by endpoints that accept connections: rather than using the configured
+	 * framing, use whichever framing the other endpoint is using, so that peers
+	 * that have not been upgraded can still connect. Must be called before the
+	 * endpoint is started.
+	 */
+	public void detectFraming() {
+		decoder.detectFraming();
+	}
+	
+	/**
+	 * Stop reading from the other endpoint until {@link #resumeReading()},
+	 * for a reader that must not wait for room to process what it reads,
+	 * i.e. one on a {@link pb.managers.endpoint.SelectorLoop}. An endpoint
+	 * with a thread of its own waits instead, so this does nothing.
+	 */
+	public void pauseReading() {
+		
+	}
+	
+	/**
+	 * Carry on reading after {@link #pauseReading()}, from any thread.
+	 */
+	public void resumeReading() {
+		
+	}
+	
+	/**
+	 * Arrange for the outbound queue to be written, called when the queue
+	 * goes from empty to non-empty.
+	 */
+	protected void scheduleWrite() {
+		writers.execute(()->{writeQueued();});
+	}
+	
+	/**
+	 * Write everything that is queued, coalescing the frames into the write
+	 * buffer and flushing once, until the queue is empty.
+	 */
+	private void writeQueued() {
+		ByteBuffer[] buffers = new ByteBuffer[64];
+		try {
+			do {
+				int count = outbound.peek(buffers);
+				for(int i=0;i<count;i++) {
+					ByteBuffer buffer = buffers[i];
+					out.write(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+					buffer.position(buffer.limit());
+					buffers[i]=null;
+				}
+				out.flush();
+			} while(!outbound.release());
+		} catch (IOException e) {
+			outbound.fail();
+			transportFailed();
+			return;
+		}
+		if(outbound.shouldClose()) closeTransport();
+	}
+	
+	/**
+	 * @return the number of messages queued but not yet written to the socket
+	 */
+	public int getOutboundQueueDepth() {
+		return outbound.getDepth();
+	}
+	
+	/**
+	 * @param lane
+	 * @return the number of messages queued on the lane and waiting their turn
+	 * to be written
+	 */
+	public int getOutboundQueueDepth(Lane lane) {
+		return outbound.getDepth(lane);
+	}
+	
+	/**
+	 * @return the number of bytes queued but not yet written to the socket
+	 */
+	public long getOutboundBytesInFlight() {
+		return outbound.getBytesInFlight();
+	}
+	
+	/**
+	 * @return the number of messages refused because the endpoint was unwritable
+	 */
+	public long getOutboundRejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * @return the number of queued messages dropped to make room for newer ones
+	 */
+	public long getOutboundDropped() {
+		return outbound.getDropped();
+	}
+	
+	/**
+	 * Add a new callback for an event, and choose how events with the same
+	 * name that are emitted on this endpoint are delivered to the other
+	 * endpoint. Both endpoints usually listen for the same events, so
+	 * choosing when listening makes the choice for both directions.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @param delivery how events with the name are sent
+	 * @return this event handler for chaining
+	 */
+	public Eventable on(String eventName, IEventCallback callback, EventDelivery delivery) {
+		setDelivery(eventName,delivery);
+		return on(eventName,callback);
+	}
+	
+	/**
+	 * Choose how events with the given name that are emitted on this
+	 * endpoint are delivered to the other endpoint.
+	 * @param eventName event name
+	 * @param delivery how events with the name are sent
+	 */
+	public void setDelivery(String eventName, EventDelivery delivery) {
+		if(delivery==EventDelivery.UNACKNOWLEDGED) unacknowledged.add(eventName);
+		else unacknowledged.remove(eventName);
+	}
+	
+	/**
+	 * @param eventName event name
+	 * @return how events with the name are delivered to the other endpoint,
+	 * acknowledged unless chosen otherwise
+	 */
+	public EventDelivery getDelivery(String eventName) {
+		return unacknowledged.contains(eventName)?EventDelivery.UNACKNOWLEDGED:EventDelivery.ACKNOWLEDGED;
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
-	 * time interval.
+	 * time interval. Does not take the endpoint's lock.
 	 * @param msg
 	 * @param timeoutCallback
 	 * @param timeInterval
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendWithTimeout(Message msg,
+	public boolean sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
-		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
-		}
+		long nextId = outstanding.add(timeoutCallback,timeInterval);
 		msg.setTimeoutId(nextId);
 		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
-			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
+		if(!sent) outstanding.remove(nextId);
 		return sent;
 	}
 	
+	/**
+	 * Send a message that has already been encoded, without a timeout id, as
+	 * for {@link #send(Message)}.
+	 * @param encoded
+	 * @return true if the message was queued for sending, false otherwise
+	 */
+	public boolean send(EncodedMessage encoded) {
+		return enqueue(encoded,0,null);
+	}
+	
+	/**
+	 * Send a message that has already been encoded with a timeout id
+	 * attached, as for {@link #sendWithTimeout(Message, ICallback, int)}.
+	 * @param encoded
+	 * @param timeoutCallback
+	 * @param timeInterval
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendWithTimeout(EncodedMessage encoded,
+			ICallback timeoutCallback,int timeInterval) {
+		long nextId = outstanding.add(timeoutCallback,timeInterval);
+		boolean sent=enqueue(encoded,nextId,null);
+		if(!sent) outstanding.remove(nextId);
+		return sent;
+	}
+	
+	/**
+	 * @return a new timeout id, for protocols that keep track of their
+	 * replies themselves, which can not be mistaken for that of any other
+	 * message sent on this endpoint
+	 */
+	public long nextTimeoutId() {
+		return outstanding.nextId();
+	}
+	
+	/**
+	 * @return the number of requests sent with a timeout that are waiting
+	 * for a reply
+	 */
+	public int getPendingRequests() {
+		return outstanding.getPending();
+	}
+	
+	/**
+	 * @return the time in ms that the oldest request sent with a timeout has
+	 * been waiting for a reply, or 0 if there is none
+	 */
+	public long getOldestPendingAge() {
+		return outstanding.getOldestAge();
+	}
+	
+	/**
+	 * Send a message and attach a timeout identifier to it, without starting
+	 * a timeout. For protocols that keep track of their replies themselves;
+	 * identifiers are given out in the order that messages are sent.
+	 * @param msg
+	 * @return the identifier attached to the message, or 0 if it was not sent
+	 */
+	public long sendWithId(Message msg) {
+		msg.setTimeoutId(0);
+		Codec codec = this.codec;
+		long id = enqueueWithId(msg,codec.encode(msg));
+		if(id!=0) msg.setTimeoutId(id);
+		return id;
+	}
+	
+	/**
+	 * Send a message that has already been encoded with a timeout id
+	 * attached, as for {@link #sendWithId(Message)}.
+	 * @param encoded
+	 * @return the identifier attached to the message, or 0 if it was not sent
+	 */
+	public long sendWithId(EncodedMessage encoded) {
+		Codec codec = this.codec;
+		return enqueueWithId(encoded.getMessage(),encoded.getPayload(codec));
+	}
+	
+	/**
+	 * Put a message on the outbound queue with the next timeout id. The
+	 * overflow policy is applied first, so a slow endpoint does not hold up
+	 * the ids of messages sent on other threads while it waits for room.
+	 * @param msg
+	 * @param payload of the message without a timeout id, which is not changed
+	 * @return the identifier attached to the message, or 0 if it was not sent
+	 */
+	private long enqueueWithId(Message msg,byte[] payload) {
+		if(stopped) return 0;
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		Lane lane = lanes.getOrDefault(msg.getProtocolName(),Lane.INTERACTIVE);
+		if(!admit(msg,lane,payload.length,null)) return 0;
+		synchronized(sendOrder) {
+			long nextId = outstanding.nextId();
+			return write(Codec.withTimeoutId(payload,nextId),lane,null)?nextId:0;
+		}
+	}
+
 	/**
 	 * Send a message in reply to a message that has a timeout id associated
 	 * with it. If it is received in time then it will ensure that a timeout
@@ -149,20 +802,58 @@ public class Endpoint extends Eventable {
 	 * @param replyingTo
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendAndCancelTimeout(Message msg,
+	public boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
 		return(send(msg));
 	}
 	
+	/**
+	 * Send a message that has already been encoded in reply to a message,
+	 * as for {@link #sendAndCancelTimeout(Message, Message)}.
+	 * @param encoded
+	 * @param replyingTo
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendAndCancelTimeout(EncodedMessage encoded,
+			Message replyingTo) {
+		return enqueue(encoded,replyingTo.getTimeoutId(),null);
+	}
+	
+	/**
+	 * Have every protocol send what it is holding back, e.g. events waiting
+	 * to be batched, before the session stops or the endpoint closes.
+	 */
+	public void flushProtocols() {
+		List<Protocol> current;
+		synchronized(protocols) {
+			current = new ArrayList<>(protocols.values());
+		}
+		current.forEach((protocol)->{protocol.flush();});
+	}
+	
 	/**
 	 * Closes the endpoint, which closes the socket. Both the endpoint thread
 	 * and the timer thread may end up attempting to do this in the event that
 	 * they detect problems.
 	 */
-	public synchronized void close() {
+	public void close() {
+		// while it can still send, and without holding the endpoint
+		if(!stopped) flushProtocols();
+		synchronized(this) {
+			stopAndClose();
+		}
+	}
+	
+	/**
+	 * Stop the endpoint and close it once what is queued has been written,
+	 * called holding the endpoint.
+	 */
+	private void stopAndClose() {
 		// we are stopping this endpoint, the send method will return false always now.
 		stopped=true;
+		// the other endpoint closes its streams along with the connection
+		for(StreamEndpoint stream : streams.values()) stream.close();
 		/* 
 	    * Tell all of the protocols to stop - they may not be able to correctly complete
 		* their intended function however - and this should be flagged as an error
@@ -175,6 +866,53 @@ public class Endpoint extends Eventable {
 		if(protocolNames!=null)
 			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
 		
+		/*
+		 * Let the writer finish what has already been queued, e.g. a session
+		 * stop reply, before the socket is closed. A peer that is not reading
+		 * only gets so long.
+		 */
+		if(outbound.closeWhenDrained()) {
+			closeTransport();
+		} else {
+			drainTimer = Utils.getInstance().setTimeout(()->{
+				closeTransport();
+			}, drainTimeout);
+		}
+		manager.endpointClosed(this);
+	}
+	
+	/**
+	 * Close the socket, once only, and release anyone waiting for the
+	 * endpoint to terminate.
+	 */
+	protected final void closeTransport() {
+		if(!transportClosed.compareAndSet(false, true)) return;
+		Timeout timer = drainTimer;
+		if(timer!=null) timer.cancel();
+		outstanding.clear();
+		releaseTransport();
+		outbound.fail();
+		Compression compression = this.compression;
+		if(compression!=null) compression.end();
+		terminated.countDown();
+		// the streams can not outlive the connection
+		for(StreamEndpoint stream : streams.values()) stream.transportFailed();
+	}
+	
+	/**
+	 * The socket failed while reading or writing. Tell the manager, unless
+	 * the socket failed because it was closed, and close it.
+	 */
+	protected void transportFailed() {
+		if(transportClosed.get()) return;
+		manager.endpointDisconnectedAbruptly(this);
+		closeTransport();
+	}
+	
+	/**
+	 * Stop reading from and close the socket.
+	 */
+	protected void releaseTransport() {
 		/*
 		 *  The endpoint thread itself will not process any more messages if we
 		 *  interrupt it.
@@ -185,25 +923,41 @@ public class Endpoint extends Eventable {
 		
 		/**
 		 * At this point there may be exactly one _currently executing_ timer
-		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
-		 * be pending timer thread callbacks that will want to use this endpoint
-		 * (which wont run since protocol stopped has been set in the protocols).
-		 * The endpoint is at this point just "closing", not closed.
+		 * thread callback, plus there may be pending timer thread callbacks
+		 * that will want to use this endpoint (which wont run since protocol
+		 * stopped has been set in the protocols, and sends are refused once
+		 * the endpoint is stopped).
 		 */
 		
-		try {
-			if(out!=null) out.close();
-			out=null;
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
-		}
+		/*
+		 * Only the socket is closed. The writer may be blocked writing to an
+		 * endpoint that has stopped reading, holding the output stream, and
+		 * closing the socket is what makes it give up. The writer flushes
+		 * after every batch so nothing is left in the stream's buffer.
+		 */
 		try {
 			socket.close();
 		} catch (IOException e) {
 			log.warning("socket did not close properly: "+e.getMessage());
 		}
-		manager.endpointClosed(this);
+	}
+	
+	/**
+	 * Wait for the endpoint to stop processing messages and for its socket
+	 * to be closed.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitTermination() throws InterruptedException {
+		join();
+		awaitTransportClosed();
+	}
+	
+	/**
+	 * Wait for the socket to be closed.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	protected final void awaitTransportClosed() throws InterruptedException {
+		terminated.await();
 	}
 	
 	/**
@@ -212,85 +966,398 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			in = socket.getInputStream();
+			out = new BufferedOutputStream(socket.getOutputStream(),writeBufferSize);
 		} catch (IOException e){
-			manager.endpointDisconnectedAbruptly(this);
+			transportFailed();
 			return;
 		}
+		ready();
+		while(!isInterrupted()) {
+			try {
+				ByteBuffer buffer = decoder.buffer();
+				int read = in.read(buffer.array(),buffer.arrayOffset()+buffer.position(),
+						buffer.remaining());
+				if(read==-1) throw new IOException("end of stream");
+				buffer.position(buffer.position()+read);
+				if(!decodeReceived()) break;
+			} catch (IOException e) {
+				transportFailed();
+				// we can't continue here
+				break;
+			}
+		}
+		/*
+		 * The input stream is not closed here, since that closes the socket
+		 * while the writer may still be writing what was queued before the
+		 * endpoint stopped, e.g. a session stop reply. The socket is closed
+		 * once that has been written, see closeTransport().
+		 */
+		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Allow the endpoint to send and tell the manager that it is ready. Called
+	 * by the engine once the connection can be used.
+	 */
+	protected void ready() {
+		writePreamble();
 		stopped=false; // allow use of the out stream
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
-		while(!isInterrupted()) {
-			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
+	}
+	
+	/**
+	 * Tell the accepting endpoint which framing we use, before anything else.
+	 */
+	protected void writePreamble() {
+		if(decoder.getFraming()==Framing.LENGTH_PREFIXED) {
+			if(outbound.offer(ByteBuffer.wrap(Framing.preamble),Lane.CONTROL,null)) scheduleWrite();
+		}
+	}
+	
+	/**
+	 * Process all of the complete messages that have been read into the
+	 * decoder's buffer.
+	 * @return false if no more messages should be read from the socket
+	 */
+	protected boolean decodeReceived() {
+		// whatever it is, the other endpoint is alive
+		lastReceived = System.currentTimeMillis();
+		try {
+			decoder.decode((array,offset,length)->{
+				// once detected, reply the same way
+				if(framing!=decoder.getFraming()) framing=decoder.getFraming();
+				receive(array,offset,length);
+				return !stopped;
+			});
+		} catch (InvalidFrame e) {
+			log.severe("invalid frame from "+getOtherEndpointId()+": "+e.getMessage());
+			manager.endpointSentInvalidMessage(this);
+			closeTransport();
+			return false;
+		}
+		return !stopped;
+	}
+	
+	/**
+	 * Process a message received from the other endpoint, by sending it to the
+	 * appropriate protocol. This is called by the engine that is reading the
+	 * socket, for each message in the order they were received.
+	 * <br/>
+	 * Only the header of the message is read to begin with, which is enough
+	 * to cancel the timeout and find the protocol. The rest of the message is
+	 * only decoded if there is a protocol to give it to.
+	 * @param array holding the received payload, in whichever codec it was sent
+	 * @param offset
+	 * @param length
+	 */
+	protected void receive(byte[] array, int offset, int length) {
+		if(Compression.isCompressed(array,offset,length)) {
+			receiveCompressed(array,offset,length);
+			return;
+		}
+		if(StreamEndpoint.isStreamFrame(array,offset,length)) {
+			receiveStreamFrame(array,offset,length);
+			return;
+		}
+		try {
+			MessageHeader header = MessageHeader.read(array,offset,length);
+			// cancel any related time out
+			if(header.getType()==Message.Type.Reply) {
+				outstanding.remove(header.getTimeoutId());
+			}
+			// find the protocol
+			Protocol protocol=null;
+			synchronized(protocols) {
+				protocol=protocols.get(header.getProtocolName());
+			}
+			if(protocol==null) {
+				switch(header.getProtocolName()) {
+				case SessionProtocol.protocolName:
+					protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
+					break;
+				case KeepAliveProtocol.protocolName:
+					protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
 					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
+				case EventProtocol.protocolName:
+					protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
 					break;
+				case RpcProtocol.protocolName:
+					protocol=new RpcProtocol(this,(IRpcProtocolHandler)manager);
 				}
-			} catch (IOException e) {
-				manager.endpointDisconnectedAbruptly(this);
-				// we can't continue here
+				if(!manager.protocolRequested(this,protocol)) {
+					log.info("message dropped due to no protocol available: "+header.getName());
+					return;
+				}
+			}
+			Message msg = Message.toMessage(header);
+			log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+			switch(msg.getType()) {
+			case Request:
+				((IRequestReplyProtocol)protocol).receiveRequest(msg);
+				break;
+			case Reply:
+				((IRequestReplyProtocol)protocol).receiveReply(msg);
 				break;
-			} catch (InvalidMessage e) {
-				manager.endpointSentInvalidMessage(this);
-				// up to the client what to do
 			}
+		} catch (InvalidMessage e) {
+			manager.endpointSentInvalidMessage(this);
+			// up to the client what to do
 		}
+	}
+	
+	/**
+	 * Inflate a compressed frame and process what it holds. A frame that can
+	 * not be inflated leaves the connection unusable, since every frame after
+	 * it is compressed against it.
+	 * @param array
+	 * @param offset
+	 * @param length
+	 */
+	private void receiveCompressed(byte[] array, int offset, int length) {
+		Compression compression = this.compression;
 		try {
-			in.close();
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+			if(compression==null) throw new InvalidFrame("compression was not agreed to");
+			ByteBuffer payload = compression.inflate(array,offset,length);
+			if(Compression.isCompressed(payload.array(),0,payload.limit()))
+				throw new InvalidFrame("compressed frame holds another compressed frame");
+			receive(payload.array(),0,payload.limit());
+		} catch (InvalidFrame e) {
+			if(transportClosed.get()) return;
+			log.severe("invalid compressed frame from "+getOtherEndpointId()+": "+e.getMessage());
+			manager.endpointSentInvalidMessage(this);
+			closeTransport();
 		}
-		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Process a frame of one of the streams on this connection. A stream
+	 * that the other endpoint has not used before is opened, and given to
+	 * the manager, before its first message is processed.
+	 * @param array
+	 * @param offset
+	 * @param length
+	 */
+	private void receiveStreamFrame(byte[] array, int offset, int length) {
+		int end = offset+length;
+		int[] position = {offset+1};
+		try {
+			if(peerStreamWindow==0) throw new InvalidFrame("streams were not agreed to");
+			long id = StreamEndpoint.getVarint(array,position,end);
+			if(id<=0 || id>Integer.MAX_VALUE) throw new InvalidFrame("invalid stream id "+id);
+			StreamEndpoint stream = streams.get((int)id);
+			switch(array[offset]) {
+			case StreamEndpoint.dataFrame:
+				if(stream==null && !opensStreams) stream=acceptStream((int)id);
+				// otherwise the stream has been closed here
+				if(stream!=null) stream.received(array,position[0],end-position[0]);
+				break;
+			case StreamEndpoint.windowFrame:
+				long bytes = StreamEndpoint.getVarint(array,position,end);
+				if(stream!=null) stream.windowReturned(bytes);
+				break;
+			case StreamEndpoint.closeFrame:
+				// unless it has already been closed here too
+				if(stream!=null) stream.transportFailed();
+				break;
+			}
+		} catch (InvalidFrame e) {
+			log.severe("invalid stream frame from "+getOtherEndpointId()+": "+e.getMessage());
+			manager.endpointSentInvalidMessage(this);
+		}
+	}
+	
+	/**
+	 * Open a stream that the other endpoint has started to use.
+	 * @param id
+	 * @return the stream, or null if the id has been used before
+	 */
+	private StreamEndpoint acceptStream(int id) {
+		StreamEndpoint stream;
+		synchronized(streams) {
+			if(stopped || id<=lastStreamId) return null;
+			lastStreamId=id;
+			stream = new StreamEndpoint(this,id,peerStreamWindow);
+			streams.put(id,stream);
+		}
+		stream.start();
+		return stream;
+	}
+	
+	/**
+	 * Open a new stream on this connection. The stream is handed to the
+	 * manager as a ready endpoint, just as a new connection would be, and
+	 * the manager starts a session on it.
+	 * @return the stream, or null if the other endpoint has not agreed to
+	 * streams opened by this endpoint or this endpoint has stopped
+	 */
+	public Endpoint openStream() {
+		if(!opensStreams || peerStreamWindow==0) return null;
+		StreamEndpoint stream;
+		synchronized(streams) {
+			if(stopped || lastStreamId==Integer.MAX_VALUE) return null;
+			int id = ++lastStreamId;
+			stream = new StreamEndpoint(this,id,peerStreamWindow);
+			streams.put(id,stream);
+		}
+		stream.start();
+		return stream;
+	}
+	
+	/**
+	 * Called when the other endpoint has agreed to streams that this
+	 * endpoint opens, see {@link pb.protocols.session.SessionProtocol}.
+	 * @param streamWindow the bytes the other endpoint lets each stream
+	 * send before it gives any back
+	 */
+	public void allowStreams(long streamWindow) {
+		opensStreams=true;
+		peerStreamWindow=streamWindow;
+	}
+	
+	/**
+	 * Called when this endpoint has agreed to streams that the other
+	 * endpoint opens, see {@link pb.protocols.session.SessionProtocol}.
+	 * @param streamWindow the bytes the other endpoint lets each stream
+	 * send before it gives any back
+	 */
+	public void acceptStreams(long streamWindow) {
+		opensStreams=false;
+		peerStreamWindow=streamWindow;
+	}
+	
+	/**
+	 * Called when this endpoint offers or agrees to compression, see
+	 * {@link pb.protocols.session.SessionProtocol}. Compressed frames are
+	 * accepted from the other endpoint from now on.
+	 */
+	public void acceptCompression() {
+		// only called by the session protocol, while the session starts
+		if(compression==null) compression = new Compression(config);
+	}
+	
+	/**
+	 * Called once both endpoints have agreed to compression. Payloads sent
+	 * from now on are compressed, unless they are smaller than
+	 * {@link pb.managers.endpoint.EndpointConfig#getCompressionThreshold()}.
+	 */
+	public void startCompression() {
+		acceptCompression();
+		compressing=true;
+	}
+	
+	/**
+	 * @return true if payloads sent on the connection are compressed
+	 */
+	public boolean isCompressing() {
+		return compressing;
+	}
+	
+	/**
+	 * @return the size on the wire of the payloads that have been compressed
+	 * on the connection over their size before, 1 if none have been
+	 */
+	public double getCompressionRatio() {
+		Compression compression = this.compression;
+		if(compression==null || compression.getBytesCompressed()==0) return 1;
+		return (double)compression.getBytesDeflated()/compression.getBytesCompressed();
+	}
+	
+	/**
+	 * @return the time in ns spent compressing and inflating the frames of
+	 * the connection, CPU time if the JVM can measure it
+	 */
+	public long getCompressionNanos() {
+		Compression compression = this.compression;
+		if(compression==null) return 0;
+		return compression.getDeflateNanos()+compression.getInflateNanos();
+	}
+	
+	/**
+	 * @return true if the endpoint no longer sends
+	 */
+	boolean isStopped() {
+		return stopped;
+	}
+	
+	/**
+	 * @return true if this endpoint is a stream on the connection of another
+	 */
+	public boolean isStream() {
+		return false;
+	}
+	
+	/**
+	 * @return the number of streams open on this connection
+	 */
+	public int getStreamCount() {
+		return streams.size();
+	}
+	
+	/**
+	 * A stream has been closed, let the other endpoint know.
+	 * @param stream
+	 */
+	void streamClosed(StreamEndpoint stream) {
+		if(streams.remove(stream.getStreamId())==null) return;
+		// after whatever the stream has sent
+		barrier();
+		writeStreamControl(StreamEndpoint.closeFrame,stream.getStreamId(),-1);
+	}
+	
+	/**
+	 * Send a stream frame that carries no message.
+	 * @param type of frame
+	 * @param id of the stream
+	 * @param value to follow the id, if not negative
+	 */
+	void writeStreamControl(byte type, int id, long value) {
+		if(stopped) return;
+		ByteBuffer frame = ByteBuffer.allocate(1+5+10);
+		frame.put(type);
+		Framing.putVarint(frame,id);
+		if(value>=0) {
+			while((value & ~0x7FL)!=0) {
+				frame.put((byte)((value & 0x7F) | 0x80));
+				value>>>=7;
+			}
+			frame.put((byte)value);
+		}
+		byte[] payload = new byte[frame.position()];
+		System.arraycopy(frame.array(),0,payload,0,payload.length);
+		write(payload,Lane.CONTROL,null);
 	}
 	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
 	 * at a time. Either client or server may start/initiate the use of the protocol.
+	 * Its messages are sent on the lane that the protocol declares.
 	 * @see {@link pb.protocols.Protocol}
 	 * @param protocol the protocol to handle
 	 * @throws ProtocolAlreadyRunning if there is already an instance of this protocol
 	 * running on this endpoint
 	 */
 	public void handleProtocol(Protocol protocol) throws ProtocolAlreadyRunning {
+		handleProtocol(protocol,protocol.getLane());
+	}
+	
+	/**
+	 * Start handling a protocol, as for {@link #handleProtocol(Protocol)}, and
+	 * send its messages on the given lane rather than the one it declares,
+	 * e.g. to send events on the bulk lane on a connection that is used for
+	 * transferring files.
+	 * @param protocol the protocol to handle
+	 * @param lane the lane to send its messages on
+	 * @throws ProtocolAlreadyRunning if there is already an instance of this protocol
+	 * running on this endpoint
+	 */
+	public void handleProtocol(Protocol protocol, Lane lane) throws ProtocolAlreadyRunning {
 		synchronized(protocols) {
 			if(protocols.containsKey(protocol.getProtocolName())){
 				throw new ProtocolAlreadyRunning();
 			} else {
+				lanes.put(protocol.getProtocolName(),lane);
 				protocols.put(protocol.getProtocolName(),protocol);
 				log.info("now handling protocol: "+protocol.getProtocolName());
 			}
@@ -0,0 +1,645 @@
+package pb.managers.endpoint;
+
+import java.util.zip.Deflater;
+
+import pb.protocols.Codec;
+
+/**
+ * Options that control how endpoints are created and run. A manager is given
+ * a config when it is constructed and passes it on to every endpoint that it
+ * creates. The setters return the config so that they can be chained, e.g.
+ * <pre>
+ * {@code
+ * ServerManager serverManager = new ServerManager(port,
+ *     new EndpointConfig().setEngine(EndpointConfig.Engine.NIO));
+ * }
+ * </pre>
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.endpoint.NioEndpoint}
+ * @author aaron
+ *
+ */
+public class EndpointConfig {
+
+	/**
+	 * The engine used to move bytes between the socket and the endpoint.
+	 */
+	static public enum Engine {
+		/**
+		 * Each endpoint is a thread that blocking reads its socket.
+		 */
+		THREADED,
+		/**
+		 * Endpoints are served by a small fixed set of selector threads.
+		 */
+		NIO
+	}
+
+	/**
+	 * Where the callbacks for received events are run.
+	 */
+	static public enum EventDispatch {
+		/**
+		 * On the thread that received the event, which reads nothing more
+		 * from the endpoint until the callbacks return.
+		 */
+		INLINE,
+		/**
+		 * On the shared {@link pb.protocols.event.EventDispatcher}, in the
+		 * order the endpoint received them.
+		 */
+		POOLED
+	}
+
+	/**
+	 * How sent events are acknowledged.
+	 */
+	static public enum EventAcks {
+		/**
+		 * Each event is answered with a reply of its own and has a timeout
+		 * of its own.
+		 */
+		PER_EVENT,
+		/**
+		 * Events are sent without waiting and the other endpoint acknowledges
+		 * every event up to the latest it has received, once every so many
+		 * events or so many ms. A single timeout covers the oldest event that
+		 * has not been acknowledged.
+		 */
+		WINDOWED
+	}
+
+	/**
+	 * What happens to a message sent while the endpoint's outbound queue is
+	 * over its high watermark, i.e. the other endpoint is not keeping up.
+	 * Session and keep alive messages are always sent.
+	 */
+	static public enum OverflowPolicy {
+		/**
+		 * The sender waits for the queue to drain below the low watermark,
+		 * and the message is refused if it does not within the overflow
+		 * timeout. Selector threads never wait, the message is refused.
+		 */
+		BLOCK,
+		/**
+		 * The oldest messages waiting on the same lane are dropped to make
+		 * room, and the message is refused if there are not enough of them.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The message is refused and the other endpoint is disconnected.
+		 */
+		DISCONNECT
+	}
+
+	/**
+	 * The engine to use, the thread-per-connection engine by default.
+	 */
+	private Engine engine = Engine.THREADED;
+
+	/**
+	 * The framing used by connecting endpoints. Accepting endpoints use
+	 * whatever framing the other endpoint uses.
+	 */
+	private Framing framing = Framing.LENGTH_PREFIXED;
+
+	/**
+	 * Largest message, in bytes, that may be sent or received.
+	 */
+	private int maxFrameSize = 16*1024*1024;
+
+	/**
+	 * The codec to use if the other endpoint agrees to it when the session
+	 * starts, otherwise JSON is used.
+	 */
+	private Codec codec = Codec.BINARY;
+
+	/**
+	 * Where the callbacks for received events are run.
+	 */
+	private EventDispatch eventDispatch = EventDispatch.INLINE;
+
+	/**
+	 * Most received events an endpoint holds for the event dispatcher.
+	 */
+	private int eventQueueCapacity = 1024;
+
+	/**
+	 * How sent events are acknowledged.
+	 */
+	private EventAcks eventAcks = EventAcks.PER_EVENT;
+
+	/**
+	 * Number of windowed events received before they are acknowledged.
+	 */
+	private int eventAckEvery = 32;
+
+	/**
+	 * Longest time in ms that a received windowed event waits to be
+	 * acknowledged.
+	 */
+	private int eventAckDelay = 20;
+
+	/**
+	 * Time in ms that an emitted event waits for more to batch with, 0 to
+	 * send every event on its own.
+	 */
+	private int eventLinger = 0;
+
+	/**
+	 * Most events sent in one batch.
+	 */
+	private int eventBatchSize = 64;
+
+	/**
+	 * Frames written from each lane per turn, by lane.
+	 */
+	private int[] laneWeights = {8,4,1};
+
+	/**
+	 * Bytes a stream may receive before it has to give any back to the
+	 * sender, 0 to not use streams.
+	 */
+	private int streamWindow = 256*1024;
+
+	/**
+	 * Whether to offer or agree to compressing the connection.
+	 */
+	private boolean compression = false;
+
+	/**
+	 * Payloads smaller than this are sent as they are on a compressed
+	 * connection.
+	 */
+	private int compressionThreshold = 512;
+
+	/**
+	 * The deflate level used on a compressed connection.
+	 */
+	private int compressionLevel = Deflater.BEST_SPEED;
+
+	/**
+	 * Bytes queued at which an endpoint becomes unwritable.
+	 */
+	private int outboundHighWatermark = 4*1024*1024;
+
+	/**
+	 * Bytes queued below which an unwritable endpoint becomes writable again.
+	 */
+	private int outboundLowWatermark = 1024*1024;
+
+	/**
+	 * What happens to messages sent while an endpoint is unwritable.
+	 */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+	/**
+	 * Longest time in ms a sender waits for an unwritable endpoint.
+	 */
+	private int overflowTimeout = 5000;
+
+	/**
+	 * Threads accepting connections on a server's port.
+	 */
+	private int acceptors = 1;
+
+	/**
+	 * Connections the operating system queues for a server's port before
+	 * they are accepted.
+	 */
+	private int acceptBacklog = 1024;
+
+	/**
+	 * Threads creating and starting the endpoints of accepted connections.
+	 */
+	private int acceptSetupThreads = 2;
+
+	/**
+	 * @return the engine to use for endpoints
+	 */
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @param engine the engine to use for endpoints
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setEngine(Engine engine) {
+		this.engine = engine;
+		return this;
+	}
+
+	/**
+	 * @return the framing used by connecting endpoints
+	 */
+	public Framing getFraming() {
+		return framing;
+	}
+
+	/**
+	 * Use {@link Framing#LEGACY_UTF} to connect to peers that have not been
+	 * upgraded yet.
+	 * @param framing the framing used by connecting endpoints
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setFraming(Framing framing) {
+		this.framing = framing;
+		return this;
+	}
+
+	/**
+	 * @return the largest message, in bytes, that may be sent or received
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * @param maxFrameSize the largest message, in bytes, that may be sent or received
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+		return this;
+	}
+
+	/**
+	 * @return the codec to use if the other endpoint agrees to it
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Use {@link Codec#JSON} to never switch away from JSON.
+	 * @param codec the codec to use if the other endpoint agrees to it
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setCodec(Codec codec) {
+		this.codec = codec;
+		return this;
+	}
+
+	/**
+	 * @return where the callbacks for received events are run
+	 */
+	public EventDispatch getEventDispatch() {
+		return eventDispatch;
+	}
+
+	/**
+	 * Use {@link EventDispatch#POOLED} when callbacks are slow, so that
+	 * endpoints can keep reading while they run.
+	 * @param eventDispatch where the callbacks for received events are run
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setEventDispatch(EventDispatch eventDispatch) {
+		this.eventDispatch = eventDispatch;
+		return this;
+	}
+
+	/**
+	 * @return the most received events an endpoint holds for the event dispatcher
+	 */
+	public int getEventQueueCapacity() {
+		return eventQueueCapacity;
+	}
+
+	/**
+	 * @param eventQueueCapacity the most received events an endpoint holds
+	 * for the event dispatcher, before it waits for them to be handled
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setEventQueueCapacity(int eventQueueCapacity) {
+		this.eventQueueCapacity = eventQueueCapacity;
+		return this;
+	}
+
+	/**
+	 * @return how sent events are acknowledged
+	 */
+	public EventAcks getEventAcks() {
+		return eventAcks;
+	}
+
+	/**
+	 * Events sent with {@link EventAcks#WINDOWED} are acknowledged one by one
+	 * by endpoints that have not been upgraded yet, so either works with any
+	 * endpoint.
+	 * @param eventAcks how sent events are acknowledged
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setEventAcks(EventAcks eventAcks) {
+		this.eventAcks = eventAcks;
+		return this;
+	}
+
+	/**
+	 * @return the number of windowed events received before they are acknowledged
+	 */
+	public int getEventAckEvery() {
+		return eventAckEvery;
+	}
+
+	/**
+	 * @param eventAckEvery the number of windowed events received before
+	 * they are acknowledged
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setEventAckEvery(int eventAckEvery) {
+		this.eventAckEvery = eventAckEvery;
+		return this;
+	}
+
+	/**
+	 * @return the longest time in ms that a received windowed event waits
+	 * to be acknowledged
+	 */
+	public int getEventAckDelay() {
+		return eventAckDelay;
+	}
+
+	/**
+	 * @param eventAckDelay the longest time in ms that a received windowed
+	 * event waits to be acknowledged
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setEventAckDelay(int eventAckDelay) {
+		this.eventAckDelay = eventAckDelay;
+		return this;
+	}
+
+	/**
+	 * @return the time in ms that an emitted event waits for more to batch
+	 * with, 0 if events are not batched
+	 */
+	public int getEventLinger() {
+		return eventLinger;
+	}
+
+	/**
+	 * Batches are only understood by endpoints that have been upgraded to
+	 * know about them, so only batch events when the other endpoint has been.
+	 * The wait is rounded up to the precision of the timer.
+	 * @param eventLinger the time in ms that an emitted event waits for more
+	 * to batch with, 0 to send every event on its own
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setEventLinger(int eventLinger) {
+		this.eventLinger = eventLinger;
+		return this;
+	}
+
+	/**
+	 * @return the most events sent in one batch
+	 */
+	public int getEventBatchSize() {
+		return eventBatchSize;
+	}
+
+	/**
+	 * @param eventBatchSize the most events sent in one batch, a full batch
+	 * is sent without waiting any longer
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setEventBatchSize(int eventBatchSize) {
+		this.eventBatchSize = eventBatchSize;
+		return this;
+	}
+
+	/**
+	 * @param lane
+	 * @return the number of frames written from the lane per turn
+	 */
+	public int getLaneWeight(Lane lane) {
+		return laneWeights[lane.ordinal()];
+	}
+
+	/**
+	 * A lane with frames queued is always written within a turn of the
+	 * writer, whatever the weights of the others.
+	 * @param lane
+	 * @param weight the number of frames written from the lane per turn,
+	 * at least 1
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setLaneWeight(Lane lane, int weight) {
+		laneWeights[lane.ordinal()] = Math.max(weight,1);
+		return this;
+	}
+
+	/**
+	 * @return the bytes a stream may receive before it has to give any back
+	 * to the sender, 0 if streams are not used
+	 */
+	public int getStreamWindow() {
+		return streamWindow;
+	}
+
+	/**
+	 * Streams are only used when both endpoints have been upgraded to know
+	 * about them and agree to them when the session starts, and only with
+	 * {@link Framing#LENGTH_PREFIXED}.
+	 * @param streamWindow the bytes a stream may receive before it has to
+	 * give any back to the sender, 0 to not use streams
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setStreamWindow(int streamWindow) {
+		this.streamWindow = streamWindow;
+		return this;
+	}
+
+	/**
+	 * @return true if compression is offered or agreed to
+	 */
+	public boolean getCompression() {
+		return compression;
+	}
+
+	/**
+	 * A connection is only compressed when both endpoints have been upgraded
+	 * to know about it and both want it when the session starts, and only
+	 * with {@link Framing#LENGTH_PREFIXED}. Streams are compressed along with
+	 * their connection.
+	 * @param compression true to compress the connection
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setCompression(boolean compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	/**
+	 * @return the size in bytes below which payloads are not compressed
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Small payloads such as acks and keep alives gain little from being
+	 * compressed and cost as much to compress per byte.
+	 * @param compressionThreshold the size in bytes below which payloads
+	 * are sent as they are
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+
+	/**
+	 * @return the deflate level used to compress
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @param compressionLevel the deflate level, from
+	 * {@link java.util.zip.Deflater#BEST_SPEED} to
+	 * {@link java.util.zip.Deflater#BEST_COMPRESSION}
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+		return this;
+	}
+
+	/**
+	 * @return the bytes queued at which an endpoint becomes unwritable
+	 */
+	public int getOutboundHighWatermark() {
+		return outboundHighWatermark;
+	}
+
+	/**
+	 * The endpoint emits {@link pb.managers.endpoint.Endpoint#unwritable}
+	 * once this many bytes are waiting to be written, and the
+	 * {@link OverflowPolicy} applies to what is sent until it emits
+	 * {@link pb.managers.endpoint.Endpoint#writable}.
+	 * @param outboundHighWatermark the bytes queued at which an endpoint
+	 * becomes unwritable
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setOutboundHighWatermark(int outboundHighWatermark) {
+		this.outboundHighWatermark = outboundHighWatermark;
+		return this;
+	}
+
+	/**
+	 * @return the bytes queued below which an endpoint becomes writable again
+	 */
+	public int getOutboundLowWatermark() {
+		return outboundLowWatermark;
+	}
+
+	/**
+	 * @param outboundLowWatermark the bytes queued below which an endpoint
+	 * becomes writable again, no more than the high watermark
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setOutboundLowWatermark(int outboundLowWatermark) {
+		this.outboundLowWatermark = outboundLowWatermark;
+		return this;
+	}
+
+	/**
+	 * @return what happens to messages sent while an endpoint is unwritable
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @param overflowPolicy what happens to messages sent while an endpoint
+	 * is unwritable
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	/**
+	 * @return the longest time in ms a sender waits for an unwritable endpoint
+	 */
+	public int getOverflowTimeout() {
+		return overflowTimeout;
+	}
+
+	/**
+	 * @param overflowTimeout the longest time in ms a sender waits for an
+	 * unwritable endpoint, with {@link OverflowPolicy#BLOCK}
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setOverflowTimeout(int overflowTimeout) {
+		this.overflowTimeout = overflowTimeout;
+		return this;
+	}
+
+	/**
+	 * @return the number of threads accepting connections on a server's port
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	/**
+	 * Where the operating system supports SO_REUSEPORT each acceptor has a
+	 * server socket of its own bound to the port, and the operating system
+	 * shares the incoming connections between them, otherwise they all
+	 * accept on the one server socket.
+	 * @param acceptors the number of threads accepting connections on a
+	 * server's port
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setAcceptors(int acceptors) {
+		this.acceptors = acceptors;
+		return this;
+	}
+
+	/**
+	 * @return the number of connections queued for a server's port before
+	 * they are accepted
+	 */
+	public int getAcceptBacklog() {
+		return acceptBacklog;
+	}
+
+	/**
+	 * Connections beyond the backlog are refused, or ignored until the
+	 * client tries again, when many clients connect at once, e.g. as they
+	 * all reconnect after the server restarts. The operating system may
+	 * limit it further.
+	 * @param acceptBacklog the number of connections queued for each server
+	 * socket before they are accepted
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setAcceptBacklog(int acceptBacklog) {
+		this.acceptBacklog = acceptBacklog;
+		return this;
+	}
+
+	/**
+	 * @return the number of threads creating and starting the endpoints of
+	 * accepted connections
+	 */
+	public int getAcceptSetupThreads() {
+		return acceptSetupThreads;
+	}
+
+	/**
+	 * Accepted connections are handed to these threads so that the acceptors
+	 * go straight back to accepting.
+	 * @param acceptSetupThreads the number of threads creating and starting
+	 * the endpoints of accepted connections
+	 * @return this config for chaining
+	 */
+	public EndpointConfig setAcceptSetupThreads(int acceptSetupThreads) {
+		this.acceptSetupThreads = acceptSetupThreads;
+		return this;
+	}
+}
@@ -0,0 +1,207 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the bytes received on a connection into frames. The engine reads
+ * straight into the decoder's {@link #buffer()} and then calls
+ * {@link #decode(IFrameHandler)}, which hands each complete payload to the
+ * handler as a slice of the same buffer, so nothing is copied or allocated per
+ * message. The buffer is reused for the life of the connection and only grows
+ * when a frame larger than it arrives, up to the maximum frame size.
+ * <br/>
+ * A decoder that is not told the framing works it out from the first bytes
+ * received, see {@link pb.managers.endpoint.Framing#preamble}.
+ *
+ * @see {@link pb.managers.endpoint.Framing}
+ * @author aaron
+ *
+ */
+public class FrameDecoder {
+
+	/**
+	 * Receives each payload that is decoded.
+	 */
+	@FunctionalInterface
+	public interface IFrameHandler {
+		/**
+		 * Handle a payload. The bytes are only valid until the method returns.
+		 * @param array
+		 * @param offset
+		 * @param length
+		 * @return false to stop decoding, e.g. because the endpoint closed
+		 */
+		public boolean frame(byte[] array,int offset,int length);
+	}
+
+	/**
+	 * Bytes received but not yet decoded, in write mode between calls.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * The framing in use, null until detected.
+	 */
+	private Framing framing;
+
+	/**
+	 * Largest payload accepted.
+	 */
+	private final int maxFrameSize;
+
+	/**
+	 * Initialise the decoder.
+	 * @param framing the framing to expect, or null to detect it
+	 * @param maxFrameSize largest payload accepted
+	 */
+	public FrameDecoder(Framing framing,int maxFrameSize) {
+		this.framing=framing;
+		this.maxFrameSize=maxFrameSize;
+		buffer=ByteBuffer.allocate(8*1024);
+	}
+
+	/**
+	 * Forget the framing and detect it from the first bytes received instead.
+	 */
+	public void detectFraming() {
+		framing=null;
+	}
+
+	/**
+	 * @return the framing in use, or null if not yet detected
+	 */
+	public Framing getFraming() {
+		return framing;
+	}
+
+	/**
+	 * @return the buffer to read received bytes into, with space remaining
+	 */
+	public ByteBuffer buffer() {
+		if(!buffer.hasRemaining()) grow(buffer.capacity()*2);
+		return buffer;
+	}
+
+	/**
+	 * Hand every complete frame in the buffer to the handler, in order.
+	 * @param handler
+	 * @throws InvalidFrame if the bytes can not be framed
+	 */
+	public void decode(IFrameHandler handler) throws InvalidFrame {
+		buffer.flip();
+		int needed=0;
+		try {
+			if(framing==null && !detect()) return;
+			while(buffer.hasRemaining()) {
+				int start=buffer.position();
+				int headerSize;
+				int length;
+				if(framing==Framing.LEGACY_UTF) {
+					if(buffer.remaining()<2) break;
+					headerSize=2;
+					length=buffer.getShort(start) & 0xffff;
+				} else {
+					length=0;
+					headerSize=0;
+					int shift=0;
+					boolean complete=false;
+					while(headerSize<buffer.remaining()) {
+						int b=buffer.get(start+headerSize++);
+						length|=(b & 0x7F)<<shift;
+						if((b & 0x80)==0) {
+							complete=true;
+							break;
+						}
+						shift+=7;
+						if(shift>28) throw new InvalidFrame("malformed frame length");
+					}
+					if(!complete) break;
+					if(length<0 || length>maxFrameSize)
+						throw new InvalidFrame("frame of "+length+" bytes exceeds the maximum frame size "+maxFrameSize);
+				}
+				if(buffer.remaining()<headerSize+length) {
+					needed=headerSize+length;
+					break;
+				}
+				buffer.position(start+headerSize+length);
+				int offset=buffer.arrayOffset()+start+headerSize;
+				boolean more;
+				if(framing==Framing.LEGACY_UTF && isModifiedUtf8(offset,length)) {
+					byte[] payload = decodeModifiedUtf8(offset-2,length+2);
+					more=handler.frame(payload,0,payload.length);
+				} else {
+					more=handler.frame(buffer.array(),offset,length);
+				}
+				if(!more) return;
+			}
+		} finally {
+			buffer.compact();
+			if(needed>buffer.capacity()) grow(needed);
+		}
+	}
+
+	/**
+	 * Look at the first bytes received to see which framing the other
+	 * endpoint is using.
+	 * @return true if the framing is known
+	 */
+	private boolean detect() {
+		if(buffer.remaining()<Framing.preamble.length) return false;
+		int start=buffer.position();
+		for(int i=0;i<Framing.preamble.length;i++) {
+			if(buffer.get(start+i)!=Framing.preamble[i]) {
+				framing=Framing.LEGACY_UTF;
+				return true;
+			}
+		}
+		buffer.position(start+Framing.preamble.length);
+		framing=Framing.LENGTH_PREFIXED;
+		return true;
+	}
+
+	/**
+	 * Whether a legacy payload may use the modified UTF-8 encodings of NUL or of
+	 * characters outside of the basic multilingual plane.
+	 * @param offset
+	 * @param length
+	 * @return true if the payload needs converting to UTF-8
+	 */
+	private boolean isModifiedUtf8(int offset,int length) {
+		byte[] array=buffer.array();
+		for(int i=offset;i<offset+length;i++) {
+			if(array[i]==(byte)0xC0 || array[i]==(byte)0xED) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Convert a legacy frame to a UTF-8 payload, the same way readUTF would.
+	 * @param offset of the frame header
+	 * @param length of the frame including its header
+	 * @return the payload
+	 * @throws InvalidFrame if the frame is not valid modified UTF-8
+	 */
+	private byte[] decodeModifiedUtf8(int offset,int length) throws InvalidFrame {
+		try {
+			return new DataInputStream(new ByteArrayInputStream(buffer.array(),offset,length))
+					.readUTF().getBytes(StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new InvalidFrame("malformed legacy frame: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Move the undecoded bytes to a larger buffer.
+	 * @param capacity
+	 */
+	private void grow(int capacity) {
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		larger.put(buffer);
+		buffer=larger;
+	}
+}
@@ -0,0 +1,118 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How messages are delimited on the wire. Each message is a payload of bytes
+ * (UTF-8 JSON text) with a header giving its length.
+ * <ul>
+ * <li>{@link #LEGACY_UTF} is the framing of
+ * {@link java.io.DataOutputStream#writeUTF(String)}, a two byte length and so
+ * a payload of at most 65535 bytes. It is kept for peers that have not been
+ * upgraded.</li>
+ * <li>{@link #LENGTH_PREFIXED} uses a varint length, so the payload is only
+ * limited by the configured maximum frame size. A connection using it starts
+ * with a {@link #preamble} so that the accepting side can tell the two framings
+ * apart.</li>
+ * </ul>
+ *
+ * @see {@link pb.managers.endpoint.FrameDecoder}
+ * @see {@link pb.managers.endpoint.EndpointConfig#setFraming(Framing)}
+ * @author aaron
+ *
+ */
+public enum Framing {
+	LEGACY_UTF,
+	LENGTH_PREFIXED;
+
+	/**
+	 * Sent first by a connecting endpoint that uses {@link #LENGTH_PREFIXED}. A
+	 * legacy frame can never start this way because its third byte is always
+	 * the opening brace of the JSON message.
+	 */
+	static final byte[] preamble = {(byte)0xFF,(byte)0xFE,'P','B'};
+
+	/**
+	 * Largest payload that {@link #LEGACY_UTF} can carry.
+	 */
+	static final int maxLegacyPayload = 65535;
+
+	/**
+	 * Frame a payload.
+	 * @param payload UTF-8 encoded message
+	 * @param maxFrameSize largest payload allowed
+	 * @return the frame, ready to write
+	 * @throws IOException if the payload is too large for this framing
+	 */
+	public ByteBuffer encode(byte[] payload,int maxFrameSize) throws IOException {
+		if(this==LEGACY_UTF) {
+			if(payload.length>maxLegacyPayload)
+				throw new IOException("message of "+payload.length+" bytes is too large for legacy framing");
+			if(!isPlainUtf8(payload)) return encodeModifiedUtf8(payload);
+			ByteBuffer frame = ByteBuffer.allocate(2+payload.length);
+			frame.putShort((short)payload.length);
+			frame.put(payload);
+			frame.flip();
+			return frame;
+		}
+		if(payload.length>maxFrameSize)
+			throw new IOException("message of "+payload.length+" bytes exceeds the maximum frame size "+maxFrameSize);
+		ByteBuffer frame = ByteBuffer.allocate(varintSize(payload.length)+payload.length);
+		putVarint(frame,payload.length);
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Standard and modified UTF-8 only differ in how NUL and characters
+	 * outside of the basic multilingual plane are encoded.
+	 * @param payload
+	 * @return true if the payload is encoded the same way in both
+	 */
+	private static boolean isPlainUtf8(byte[] payload) {
+		for(byte b : payload) {
+			if(b==0 || (b & 0xF0)==0xF0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The rare case, let writeUTF do the encoding.
+	 * @param payload
+	 * @return the legacy frame
+	 * @throws IOException if the encoding is too long
+	 */
+	private static ByteBuffer encodeModifiedUtf8(byte[] payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length+8);
+		new DataOutputStream(bytes).writeUTF(new String(payload,StandardCharsets.UTF_8));
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	/**
+	 * @param value non-negative
+	 * @return the number of bytes needed to write the value as a varint
+	 */
+	static int varintSize(int value) {
+		int size=1;
+		while((value>>>=7)!=0) size++;
+		return size;
+	}
+
+	/**
+	 * Write an unsigned varint, seven bits at a time, least significant first.
+	 * @param buffer
+	 * @param value non-negative
+	 */
+	static void putVarint(ByteBuffer buffer,int value) {
+		while((value & ~0x7F)!=0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value>>>=7;
+		}
+		buffer.put((byte)value);
+	}
+}
@@ -0,0 +1,18 @@
+package pb.managers.endpoint;
+
+/**
+ * The bytes received can not be split into messages, e.g. a frame is
+ * larger than the maximum frame size. The connection can not recover from
+ * this since the start of the next message is unknown.
+ * 
+ * @see {@link pb.managers.endpoint.FrameDecoder}
+ * @author aaron
+ *
+ */
+@SuppressWarnings("serial")
+public class InvalidFrame extends Exception {
+
+	public InvalidFrame(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,29 @@
+package pb.managers.endpoint;
+
+/**
+ * Which of an endpoint's outbound queues a protocol's messages go on. Each
+ * lane is written in the order its messages were sent, and the writer takes
+ * frames from the lanes in turn, so that a lane full of large messages can
+ * not hold up the others for long. How many frames each lane gets per turn
+ * is set by {@link pb.managers.endpoint.EndpointConfig#setLaneWeight(Lane, int)}.
+ *
+ * @see {@link pb.protocols.Protocol#getLane()}
+ * @see {@link pb.managers.endpoint.OutboundQueue}
+ * @author aaron
+ *
+ */
+public enum Lane {
+	/**
+	 * Session and keep alive messages, which must get through even when the
+	 * connection is busy.
+	 */
+	CONTROL,
+	/**
+	 * Messages that someone is waiting on, such as events and calls.
+	 */
+	INTERACTIVE,
+	/**
+	 * Large transfers that can wait their turn.
+	 */
+	BULK
+}
@@ -0,0 +1,242 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * An endpoint that does not have a thread of its own. The socket channel is
+ * registered with one of the shared {@link pb.managers.endpoint.SelectorLoop}s
+ * which reads messages when they arrive and hands them to the endpoint for
+ * processing, in exactly the same way as the thread-per-connection
+ * {@link pb.managers.endpoint.Endpoint} does. Messages are framed the same way
+ * on the wire, so an NIO endpoint can talk to a threaded one.
+ * <br/>
+ * Sends never block: the loop writes everything on the outbound queue with a
+ * single gathering write, and whatever the socket can not take straight away
+ * is written when the socket becomes writable again.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.endpoint.SelectorLoop}
+ * @author aaron
+ *
+ */
+public class NioEndpoint extends Endpoint {
+	private static Logger log = Logger.getLogger(NioEndpoint.class.getName());
+
+	/**
+	 * The channel this endpoint is wrapped around.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The id of the other endpoint, kept since the channel can not provide
+	 * it after it has been closed.
+	 */
+	private final String otherEndpointId;
+
+	/**
+	 * The loop serving this endpoint.
+	 */
+	private SelectorLoop loop;
+
+	/**
+	 * The channel's registration with the loop.
+	 */
+	private volatile SelectionKey key;
+
+	/**
+	 * Frames handed to the channel in one gathering write. Only used by the
+	 * loop thread.
+	 */
+	private final ByteBuffer[] writeBuffers = new ByteBuffer[64];
+
+	/**
+	 * Whether the channel has been closed.
+	 */
+	private volatile boolean channelClosed=false;
+
+	/**
+	 * Pauses of reading not resumed yet, by this endpoint and its streams.
+	 * Only used by the loop thread.
+	 */
+	private int readPauses=0;
+
+	/**
+	 * Initialise the endpoint with a connected channel and a manager, using
+	 * the default config.
+	 * @param channel
+	 * @param manager
+	 */
+	public NioEndpoint(SocketChannel channel, IEndpointHandler manager) {
+		this(channel,manager,new EndpointConfig());
+	}
+
+	/**
+	 * Initialise the endpoint with a connected channel, a manager and a config.
+	 * @param channel
+	 * @param manager
+	 * @param config
+	 */
+	public NioEndpoint(SocketChannel channel, IEndpointHandler manager, EndpointConfig config) {
+		super(channel.socket(), manager, config);
+		this.channel = channel;
+		otherEndpointId = socket.getInetAddress().toString()+":"+socket.getPort();
+		setName("NioEndpoint");
+	}
+
+	/**
+	 * @return the channel this endpoint is wrapped around
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Register with a selector loop rather than starting a thread. The
+	 * endpoint becomes ready once it is registered.
+	 */
+	@Override
+	public synchronized void start() {
+		try {
+			loop = SelectorLoop.next();
+		} catch (IOException e) {
+			log.severe("no selector loop available: "+e.getMessage());
+			transportFailed();
+			return;
+		}
+		loop.register(this);
+	}
+
+	/**
+	 * Called on the loop thread once the channel is registered.
+	 * @param key
+	 */
+	void registered(SelectionKey key) {
+		this.key = key;
+		ready();
+	}
+
+	/**
+	 * Called on the loop thread when there are bytes to read. Every complete
+	 * message that has arrived is processed, in order.
+	 */
+	void readable() {
+		int read;
+		try {
+			read = channel.read(decoder.buffer());
+		} catch (IOException e) {
+			read = -1;
+		}
+		if(read==-1) {
+			transportFailed();
+			return;
+		}
+		decodeReceived();
+	}
+
+	/**
+	 * Called on the loop thread when queued frames can be written. Everything
+	 * queued goes to the channel in one gathering write; if the channel can not
+	 * take it all then the loop waits for it to become writable again.
+	 */
+	void writable() {
+		SelectionKey k = key;
+		if(channelClosed || k==null || !k.isValid()) return;
+		try {
+			do {
+				int count = outbound.peek(writeBuffers);
+				if(count==0) continue;
+				channel.write(writeBuffers,0,count);
+				boolean blocked = writeBuffers[count-1].hasRemaining();
+				for(int i=0;i<count;i++) writeBuffers[i]=null;
+				if(blocked) {
+					outbound.release();
+					k.interestOps(readOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			} while(!outbound.release());
+			k.interestOps(readOps());
+		} catch (IOException e) {
+			outbound.fail();
+			transportFailed();
+			return;
+		}
+		if(outbound.shouldClose()) closeTransport();
+	}
+
+	/**
+	 * @return the interest in reading, none while reading is paused
+	 */
+	private int readOps() {
+		return readPauses>0?0:SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Stop selecting the channel for reading, called on the loop thread.
+	 * Messages already read are still processed. Reading carries on once
+	 * every pause has been resumed.
+	 */
+	@Override
+	public void pauseReading() {
+		SelectionKey k = key;
+		if(++readPauses>1) return;
+		if(k!=null && k.isValid()) k.interestOps(k.interestOps() & ~SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Resume one pause, selecting the channel for reading again, on the loop
+	 * thread, if it was the last.
+	 */
+	@Override
+	public void resumeReading() {
+		loop.execute(()->{
+			SelectionKey k = key;
+			if(readPauses==0 || --readPauses>0) return;
+			if(k!=null && k.isValid()) k.interestOps(k.interestOps() | SelectionKey.OP_READ);
+		});
+	}
+
+	/**
+	 * Have the loop write the outbound queue.
+	 */
+	@Override
+	protected void scheduleWrite() {
+		loop.execute(()->{writable();});
+	}
+
+	/**
+	 * Deregister from the loop and close the channel.
+	 */
+	@Override
+	protected void releaseTransport() {
+		channelClosed=true;
+		SelectionKey k = key;
+		if(k!=null) k.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("channel did not close properly: "+e.getMessage());
+		}
+		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+
+	/**
+	 * Wait for the channel to be closed.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	@Override
+	public void awaitTermination() throws InterruptedException {
+		awaitTransportClosed();
+	}
+
+	/**
+	 * @return the id of the other endpoint
+	 */
+	@Override
+	public String getOtherEndpointId() {
+		return otherEndpointId;
+	}
+}
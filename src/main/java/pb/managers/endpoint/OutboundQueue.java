@@ -0,0 +1,491 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * The frames that an endpoint has been asked to send but that have not been
+ * written to the socket yet. Senders add frames and return straight away,
+ * while a single writer at a time takes what is queued, writes it in one go
+ * and then releases what was written. Only one writer is ever scheduled:
+ * {@link #offer(ByteBuffer, Lane, CompletableFuture)} says when the queue
+ * went from idle to busy, and {@link #release()} says when the writer can
+ * stop because the queue is empty again.
+ * <br/>
+ * Frames are queued by {@link pb.managers.endpoint.Lane}. The writer is
+ * handed frames from the lanes in turn, up to each lane's weight per turn,
+ * and about a write buffer's worth at a time, so a frame sent on a quiet
+ * lane only waits for what is already being written rather than for
+ * everything queued ahead of it. Frames on the same lane are written in the
+ * order they were offered, and a {@link #barrier()} keeps frames on
+ * different lanes in order where that matters.
+ * <br/>
+ * The queue becomes unwritable once the bytes queued reach the high
+ * watermark, and writable again once they fall below the low watermark, so
+ * that senders can hold off on a slow connection. What happens to what is
+ * sent in the meantime is up to the endpoint, see
+ * {@link pb.managers.endpoint.EndpointConfig.OverflowPolicy}.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @author aaron
+ *
+ */
+public class OutboundQueue {
+
+	/**
+	 * A frame waiting to be written, and who to tell when it has been.
+	 */
+	private static class Frame {
+		ByteBuffer buffer; // the payload until compressed, then the frame
+		final int size;
+		final CompletableFuture<Boolean> future; // null if nobody asked
+		final long sequence;
+		Compression compression; // null once compressed, or if not compressed
+		final boolean droppable;
+		Frame(ByteBuffer buffer,CompletableFuture<Boolean> future,long sequence,Compression compression,
+				boolean droppable) {
+			this.buffer=buffer;
+			this.size=buffer.remaining();
+			this.future=future;
+			this.sequence=sequence;
+			this.compression=compression;
+			this.droppable=droppable;
+		}
+	}
+
+	/**
+	 * Most bytes handed to the writer at a time, unless a single frame is
+	 * bigger.
+	 */
+	private static final int batchBytes = 64*1024;
+
+	/**
+	 * Frames waiting their turn, by lane.
+	 */
+	private final ArrayDeque<Frame>[] lanes;
+
+	/**
+	 * Frames handed to the writer, in the order they are being written.
+	 */
+	private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+	/**
+	 * Frames handed to the writer by the current peek that still have to be
+	 * compressed. Only used by the writer.
+	 */
+	private Frame[] compress = new Frame[0];
+	private int[] compressAt = new int[0];
+
+	/**
+	 * Frames each lane gets per turn, and how many it has left this turn.
+	 */
+	private final int[] weights;
+	private final int[] credits;
+
+	/**
+	 * Frames waiting their turn, over all lanes.
+	 */
+	private int waiting=0;
+
+	/**
+	 * Sequence number of the next frame offered.
+	 */
+	private long sequence=0;
+
+	/**
+	 * Sequence numbers that frames are not taken past while any frame
+	 * before them is waiting, in increasing order.
+	 */
+	private final ArrayDeque<Long> barriers = new ArrayDeque<>();
+
+	/**
+	 * Bytes queued or being written, i.e. not yet handed to the socket.
+	 */
+	private long bytesInFlight=0;
+
+	/**
+	 * Whether a writer is currently responsible for the queue.
+	 */
+	private boolean writing=false;
+
+	/**
+	 * Set when the queue has failed, after which nothing more is accepted.
+	 */
+	private boolean failed=false;
+
+	/**
+	 * Set when the endpoint wants to close once everything has been written.
+	 */
+	private boolean closeWhenDrained=false;
+
+	/**
+	 * The bytes in flight at which the queue becomes unwritable, and below
+	 * which it becomes writable again.
+	 */
+	private final int highWatermark;
+	private final int lowWatermark;
+
+	/**
+	 * Set from when the high watermark is reached until the queue falls
+	 * below the low watermark, written while holding the lock.
+	 */
+	private volatile boolean unwritable=false;
+
+	/**
+	 * Frames dropped to make room for newer ones.
+	 */
+	private long dropped=0;
+
+	/**
+	 * Told when the queue becomes writable or unwritable, outside of the lock.
+	 */
+	private volatile Consumer<Boolean> writabilityListener;
+
+	/**
+	 * Initialise the queue with the lane weights of a config.
+	 * @param config
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public OutboundQueue(EndpointConfig config) {
+		Lane[] all = Lane.values();
+		lanes = new ArrayDeque[all.length];
+		weights = new int[all.length];
+		credits = new int[all.length];
+		for(Lane lane : all) {
+			lanes[lane.ordinal()] = new ArrayDeque<>();
+			weights[lane.ordinal()] = config.getLaneWeight(lane);
+			credits[lane.ordinal()] = weights[lane.ordinal()];
+		}
+		highWatermark = config.getOutboundHighWatermark();
+		lowWatermark = Math.min(config.getOutboundLowWatermark(),highWatermark);
+	}
+
+	/**
+	 * @param writabilityListener told true when the queue becomes writable
+	 * and false when it becomes unwritable, on the thread that made it so
+	 */
+	public void setWritabilityListener(Consumer<Boolean> writabilityListener) {
+		this.writabilityListener = writabilityListener;
+	}
+
+	/**
+	 * Add a frame to the end of its lane.
+	 * @param buffer the frame bytes, ready to be written
+	 * @param lane the lane to queue the frame on
+	 * @param future completed with true once written or false if it never will be,
+	 * may be null
+	 * @return true if the caller must schedule a writer, because none is running
+	 */
+	public boolean offer(ByteBuffer buffer,Lane lane,CompletableFuture<Boolean> future) {
+		return offer(buffer,lane,future,null,false);
+	}
+
+	/**
+	 * Add a payload to the end of its lane, to be compressed and framed when
+	 * it is handed to the writer, since the frames of a compressed connection
+	 * have to be compressed in the order they are written.
+	 * @param buffer the frame bytes, or the payload if it is to be compressed
+	 * @param lane the lane to queue the frame on
+	 * @param future completed with true once written or false if it never will be,
+	 * may be null
+	 * @param compression to compress the payload with, null if the buffer is
+	 * a frame ready to be written
+	 * @param droppable true if the frame may be dropped by
+	 * {@link #dropOldest(Lane, int)}
+	 * @return true if the caller must schedule a writer, because none is running
+	 */
+	public boolean offer(ByteBuffer buffer,Lane lane,CompletableFuture<Boolean> future,
+			Compression compression,boolean droppable) {
+		boolean full=false;
+		boolean schedule;
+		synchronized(this) {
+			if(failed) {
+				if(future!=null) future.complete(false);
+				return false;
+			}
+			lanes[lane.ordinal()].add(new Frame(buffer,future,sequence++,compression,droppable));
+			waiting++;
+			bytesInFlight+=buffer.remaining();
+			if(!unwritable && bytesInFlight>=highWatermark) {
+				unwritable=true;
+				full=true;
+			}
+			schedule=!writing;
+			writing=true;
+		}
+		if(full) writabilityChanged(false);
+		return schedule;
+	}
+
+	/**
+	 * Drop the oldest droppable frames waiting on a lane until a frame of the
+	 * given size fits under the high watermark. Nothing is dropped unless
+	 * enough can be.
+	 * @param lane
+	 * @param size of the frame to make room for
+	 * @return true if there is room for the frame
+	 */
+	public boolean dropOldest(Lane lane,int size) {
+		List<Frame> removed = new ArrayList<>();
+		boolean drained=false;
+		synchronized(this) {
+			long needed = bytesInFlight+size-highWatermark;
+			if(needed<=0) return true;
+			long available=0;
+			for(Frame frame : lanes[lane.ordinal()]) {
+				if(frame.droppable) available+=frame.size;
+			}
+			if(available<needed) return false;
+			Iterator<Frame> frames = lanes[lane.ordinal()].iterator();
+			while(needed>0) {
+				Frame frame = frames.next();
+				if(!frame.droppable) continue;
+				frames.remove();
+				removed.add(frame);
+				waiting--;
+				bytesInFlight-=frame.size;
+				needed-=frame.size;
+			}
+			dropped+=removed.size();
+			drained=drained();
+		}
+		removed.forEach((frame)->{
+			if(frame.future!=null) frame.future.complete(false);
+		});
+		if(drained) writabilityChanged(true);
+		return true;
+	}
+
+	/**
+	 * Wait for the queue to become writable.
+	 * @param timeout in ms
+	 * @return true if the queue is writable, false if the wait timed out, was
+	 * interrupted or the queue failed
+	 */
+	public synchronized boolean awaitWritable(long timeout) {
+		long deadline = System.currentTimeMillis()+timeout;
+		try {
+			while(unwritable && !failed) {
+				long remaining = deadline-System.currentTimeMillis();
+				if(remaining<=0) return false;
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !failed;
+	}
+
+	/**
+	 * Called holding the lock whenever bytes leave the queue.
+	 * @return true if the queue has just become writable again
+	 */
+	private boolean drained() {
+		if(!unwritable || failed || bytesInFlight>=lowWatermark) return false;
+		unwritable=false;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * @param writable
+	 */
+	private void writabilityChanged(boolean writable) {
+		Consumer<Boolean> listener = writabilityListener;
+		if(listener!=null) listener.accept(writable);
+	}
+
+	/**
+	 * Fill the array with the buffers of the frames to write next, without
+	 * removing them, so that they can be written together. Frames that were
+	 * handed out before and are not completely written yet come first.
+	 * Payloads to be compressed are compressed once they have been taken,
+	 * outside of the lock so that senders are not held up.
+	 * @param buffers
+	 * @return the number of buffers filled in
+	 */
+	public int peek(ByteBuffer[] buffers) {
+		if(compress.length<buffers.length) {
+			compress = new Frame[buffers.length];
+			compressAt = new int[buffers.length];
+		}
+		int i=0;
+		int compressing=0;
+		synchronized(this) {
+			long bytes=0;
+			for(Frame frame : frames) {
+				if(i==buffers.length) return i;
+				buffers[i++]=frame.buffer;
+				bytes+=frame.buffer.remaining();
+			}
+			while(i<buffers.length && waiting>0 && (i==0 || bytes<batchBytes)) {
+				Frame frame = nextFrame();
+				frames.add(frame);
+				if(frame.compression!=null) {
+					compress[compressing]=frame;
+					compressAt[compressing++]=i;
+				}
+				buffers[i++]=frame.buffer;
+				bytes+=frame.buffer.remaining();
+			}
+		}
+		for(int c=0;c<compressing;c++) {
+			Frame frame = compress[c];
+			compress[c]=null;
+			frame.buffer=frame.compression.deflate(frame.buffer);
+			frame.compression=null;
+			buffers[compressAt[c]]=frame.buffer;
+		}
+		return i;
+	}
+
+	/**
+	 * Have every frame offered from now on written after every frame that
+	 * has been offered already, whatever their lanes.
+	 */
+	public synchronized void barrier() {
+		if(waiting>0 && (barriers.isEmpty() || barriers.peekLast()!=sequence)) barriers.add(sequence);
+	}
+
+	/**
+	 * Take the next frame that is waiting, from the first lane in order that
+	 * has frames before the first barrier and has not had its turn yet. Once
+	 * every such lane has had its turn, the turns start again.
+	 * @return the frame, there must be one waiting
+	 */
+	private Frame nextFrame() {
+		while(true) {
+			long limit = barriers.isEmpty()?Long.MAX_VALUE:barriers.peek();
+			boolean before=false;
+			for(int l=0;l<lanes.length;l++) {
+				Frame head = lanes[l].peek();
+				if(head==null || head.sequence>=limit) continue;
+				before=true;
+				if(credits[l]>0) {
+					credits[l]--;
+					waiting--;
+					return lanes[l].poll();
+				}
+			}
+			if(!before) {
+				// everything before the barrier has been taken
+				barriers.poll();
+			} else {
+				System.arraycopy(weights,0,credits,0,weights.length);
+			}
+		}
+	}
+
+	/**
+	 * Remove the frames at the head of the queue that have been completely
+	 * written and tell anyone waiting on them.
+	 * @return true if the queue is now empty and the writer should stop, in
+	 * which case the next offer will schedule a new writer
+	 */
+	public boolean release() {
+		List<CompletableFuture<Boolean>> done = null;
+		boolean empty;
+		boolean drained;
+		synchronized(this) {
+			while(!frames.isEmpty() && !frames.peek().buffer.hasRemaining()) {
+				Frame frame = frames.poll();
+				bytesInFlight-=frame.size;
+				if(frame.future!=null) {
+					if(done==null) done = new ArrayList<>();
+					done.add(frame.future);
+				}
+			}
+			empty=frames.isEmpty() && waiting==0;
+			if(empty) writing=false;
+			drained=drained();
+		}
+		if(done!=null) done.forEach((future)->{future.complete(true);});
+		if(drained) writabilityChanged(true);
+		return empty;
+	}
+
+	/**
+	 * The socket can no longer be written, drop everything that is queued.
+	 */
+	public void fail() {
+		List<Frame> dropped;
+		synchronized(this) {
+			failed=true;
+			writing=false;
+			dropped = new ArrayList<>(frames);
+			frames.clear();
+			for(ArrayDeque<Frame> lane : lanes) {
+				dropped.addAll(lane);
+				lane.clear();
+			}
+			waiting=0;
+			barriers.clear();
+			bytesInFlight=0;
+			// nobody waits for a queue that will never be written
+			notifyAll();
+		}
+		dropped.forEach((frame)->{
+			if(frame.future!=null) frame.future.complete(false);
+		});
+	}
+
+	/**
+	 * Ask for the endpoint to be closed once the queue is empty.
+	 * @return true if the queue is already empty and the caller should close
+	 * now, otherwise the writer must close when {@link #release()} returns true
+	 */
+	public synchronized boolean closeWhenDrained() {
+		closeWhenDrained=true;
+		return !writing;
+	}
+
+	/**
+	 * @return true if the writer should close the endpoint now that the queue is empty
+	 */
+	public synchronized boolean shouldClose() {
+		return closeWhenDrained && !writing;
+	}
+
+	/**
+	 * @return the number of frames waiting to be written
+	 */
+	public synchronized int getDepth() {
+		return frames.size()+waiting;
+	}
+
+	/**
+	 * @param lane
+	 * @return the number of frames waiting their turn on the lane
+	 */
+	public synchronized int getDepth(Lane lane) {
+		return lanes[lane.ordinal()].size();
+	}
+
+	/**
+	 * @return the number of bytes queued but not yet written to the socket
+	 */
+	public synchronized long getBytesInFlight() {
+		return bytesInFlight;
+	}
+
+	/**
+	 * @return false from when the bytes in flight reach the high watermark
+	 * until they fall below the low watermark
+	 */
+	public boolean isWritable() {
+		return !unwritable;
+	}
+
+	/**
+	 * @return the number of frames dropped to make room for newer ones
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+}
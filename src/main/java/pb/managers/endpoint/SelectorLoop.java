@@ -0,0 +1,165 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * An event loop thread that waits on a selector for any of its registered
+ * {@link pb.managers.endpoint.NioEndpoint}s to become readable or writable,
+ * and then calls the endpoint to do the reading or writing. A small fixed set
+ * of loops is shared by all of the NIO endpoints in the system, so that the
+ * number of threads does not grow with the number of connections.
+ * <br/>
+ * Everything that touches the selector is done on the loop thread itself,
+ * other threads hand work to it using {@link #execute(Runnable)}.
+ *
+ * @see {@link pb.managers.endpoint.NioEndpoint}
+ * @author aaron
+ *
+ */
+public class SelectorLoop extends Thread {
+	private static Logger log = Logger.getLogger(SelectorLoop.class.getName());
+
+	/**
+	 * Number of loops to share the endpoints over.
+	 */
+	private static final int numLoops = Math.max(1,
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * The shared loops, created when the first NIO endpoint starts.
+	 */
+	private static SelectorLoop[] loops;
+
+	/**
+	 * Used to assign endpoints to loops in round robin order.
+	 */
+	private static final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * The selector for this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Work handed to this loop by other threads.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+
+	private SelectorLoop(int id) throws IOException {
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		setName("SelectorLoop-"+id);
+		setDaemon(true); // managers keep the JVM running, not the loops
+	}
+
+	/**
+	 * Get the next loop to use for a new endpoint, starting the loops
+	 * if they have not been started yet.
+	 * @return the loop
+	 * @throws IOException if a selector could not be opened
+	 */
+	public static synchronized SelectorLoop next() throws IOException {
+		if(loops==null) {
+			SelectorLoop[] newLoops = new SelectorLoop[numLoops];
+			for(int i=0;i<numLoops;i++) {
+				newLoops[i]=new SelectorLoop(i);
+			}
+			for(SelectorLoop loop : newLoops) loop.start();
+			loops=newLoops;
+		}
+		return loops[Math.floorMod(nextLoop.getAndIncrement(),loops.length)];
+	}
+
+	/**
+	 * @return true if the calling thread is one of the loops
+	 */
+	public static boolean isLoopThread() {
+		return Thread.currentThread() instanceof SelectorLoop;
+	}
+
+	/**
+	 * @return true if the calling thread is this loop
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread()==this;
+	}
+
+	/**
+	 * Run a task on this loop thread.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Register an endpoint with this loop. The endpoint is told that it is
+	 * registered on the loop thread.
+	 * @param endpoint
+	 */
+	void register(NioEndpoint endpoint) {
+		execute(()->{
+			try {
+				endpoint.getChannel().configureBlocking(false);
+				SelectionKey key = endpoint.getChannel().register(selector,
+						SelectionKey.OP_READ, endpoint);
+				endpoint.registered(key);
+			} catch (ClosedChannelException e) {
+				endpoint.transportFailed();
+			} catch (IOException e) {
+				log.warning("could not register endpoint: "+e.getMessage());
+				endpoint.transportFailed();
+			}
+		});
+	}
+
+	/**
+	 * Select and dispatch until the JVM exits.
+	 */
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				log.severe("selector failed: "+e.getMessage());
+				return;
+			}
+			Runnable task;
+			while((task=tasks.poll())!=null) {
+				runSafely(task);
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				NioEndpoint endpoint = (NioEndpoint) key.attachment();
+				runSafely(()->{
+					if(key.isValid() && key.isWritable()) endpoint.writable();
+					if(key.isValid() && key.isReadable()) endpoint.readable();
+				});
+			}
+		}
+	}
+
+	/**
+	 * Callbacks from endpoints reach application code, which must not be
+	 * allowed to kill the loop for every other endpoint on it.
+	 * @param task
+	 */
+	private void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			log.severe("exception on selector loop: "+e);
+		}
+	}
+}
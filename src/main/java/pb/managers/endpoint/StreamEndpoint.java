@@ -0,0 +1,498 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * A logical connection carried inside the connection of another endpoint,
+ * so that any number of sessions between the same two peers can share one
+ * socket. A stream is an endpoint in every other respect: it is handed to the
+ * manager when it is ready, it runs its own session and protocols, e.g. its
+ * own {@link pb.protocols.event.EventProtocol}, and it is closed on its own.
+ * Streams are opened by the endpoint that made the connection, see
+ * {@link pb.managers.endpoint.Endpoint#openStream()}, once the other endpoint
+ * has agreed to them when the session started, and they are closed along with
+ * the connection.
+ * <br/>
+ * Every frame of a stream starts with a marker and the stream's id. Each
+ * stream has a window of bytes it may send before the other endpoint has
+ * processed them; the other endpoint gives the window back as it processes
+ * what it receives, and frames sent while the window is used up are held until
+ * it does. So a stream whose other end is slow fills its own window rather
+ * than the connection's outbound queue. The frames a stream holds have
+ * watermarks of their own, with the same
+ * {@link pb.managers.endpoint.EndpointConfig.OverflowPolicy} as the
+ * connection, and a stream is only writable if its connection is too.
+ * <br/>
+ * Streams have no keep alive of their own, the connection's keep alive
+ * covers them, and they are compressed if the connection is.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.endpoint.EndpointConfig#setStreamWindow(int)}
+ * @author aaron
+ *
+ */
+public class StreamEndpoint extends Endpoint {
+	private static Logger log = Logger.getLogger(StreamEndpoint.class.getName());
+
+	/**
+	 * First byte of a frame carrying a message of a stream, followed by the
+	 * stream id and the message.
+	 */
+	static final byte dataFrame = (byte)0xB5;
+
+	/**
+	 * First byte of a frame giving a stream's window back, followed by the
+	 * stream id and the number of bytes.
+	 */
+	static final byte windowFrame = (byte)0xB6;
+
+	/**
+	 * First byte of a frame saying that a stream has been closed, followed by
+	 * the stream id.
+	 */
+	static final byte closeFrame = (byte)0xB7;
+
+	/**
+	 * A frame held until the window allows it to be sent.
+	 */
+	private static class Held {
+		final byte[] frame;
+		final int size;
+		final Lane lane;
+		final CompletableFuture<Boolean> future;
+		Held(byte[] frame,int size,Lane lane,CompletableFuture<Boolean> future) {
+			this.frame=frame;
+			this.size=size;
+			this.lane=lane;
+			this.future=future;
+		}
+	}
+
+	/**
+	 * The endpoint whose connection carries this stream.
+	 */
+	private final Endpoint parent;
+
+	/**
+	 * The id of this stream on the connection.
+	 */
+	private final int id;
+
+	/**
+	 * The bytes this stream may still send, guarded by this. May go below
+	 * zero, since a message is never split.
+	 */
+	private long sendWindow;
+
+	/**
+	 * Frames waiting for the window, guarded by this.
+	 */
+	private final ArrayDeque<Held> held = new ArrayDeque<>();
+
+	/**
+	 * Bytes received and processed that have not been given back to the
+	 * other endpoint yet, guarded by this.
+	 */
+	private long consumed=0;
+
+	/**
+	 * Bytes of the frames held, guarded by this.
+	 */
+	private long heldBytes=0;
+
+	/**
+	 * Set from when the held bytes reach the high watermark until they fall
+	 * below the low watermark, written while holding this.
+	 */
+	private volatile boolean unwritable=false;
+
+	/**
+	 * Held frames dropped to make room for newer ones, guarded by this.
+	 */
+	private long dropped=0;
+
+	/**
+	 * Pauses of the connection's reading made for this stream and not
+	 * resumed yet, guarded by this.
+	 */
+	private int readPauses=0;
+
+	/**
+	 * Initialise the stream, which has to be started before it is used.
+	 * @param parent the endpoint whose connection carries the stream
+	 * @param id
+	 * @param sendWindow the bytes the other endpoint allows to be sent
+	 * before it gives any back
+	 */
+	StreamEndpoint(Endpoint parent, int id, long sendWindow) {
+		super(parent.socket, parent.manager, parent.config);
+		this.parent = parent;
+		this.id = id;
+		this.sendWindow = sendWindow;
+		setName("StreamEndpoint");
+	}
+
+	/**
+	 * @return the id of this stream on the connection
+	 */
+	public int getStreamId() {
+		return id;
+	}
+
+	/**
+	 * @return the endpoint whose connection carries this stream
+	 */
+	public Endpoint getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return the bytes this stream may still send before it has to wait
+	 * for the other endpoint
+	 */
+	public synchronized long getSendWindow() {
+		return sendWindow;
+	}
+
+	@Override
+	public boolean isStream() {
+		return true;
+	}
+
+	/**
+	 * A stream has no thread of its own, it is ready straight away.
+	 */
+	@Override
+	public synchronized void start() {
+		ready();
+	}
+
+	/**
+	 * The connection has already sent its preamble.
+	 */
+	@Override
+	protected void writePreamble() {
+
+	}
+
+	/**
+	 * Send the message on the connection, behind the stream's header, or hold
+	 * it if the window is used up.
+	 */
+	@Override
+	protected boolean write(byte[] payload, Lane lane, CompletableFuture<Boolean> future) {
+		if(parent.isStopped()) {
+			if(future!=null) future.complete(false);
+			return false;
+		}
+		ByteBuffer frame = ByteBuffer.allocate(1+Framing.varintSize(id)+payload.length);
+		frame.put(dataFrame);
+		Framing.putVarint(frame,id);
+		frame.put(payload);
+		synchronized(this) {
+			if(sendWindow>0 && held.isEmpty()) {
+				sendWindow-=payload.length;
+				return parent.write(frame.array(),lane,future);
+			}
+			held.add(new Held(frame.array(),payload.length,lane,future));
+			heldBytes+=payload.length;
+			if(unwritable || heldBytes<config.getOutboundHighWatermark()) return true;
+			unwritable=true;
+		}
+		writabilityChanged(false);
+		return true;
+	}
+
+	/**
+	 * The other endpoint has processed some of what this stream sent.
+	 * @param bytes
+	 */
+	void windowReturned(long bytes) {
+		synchronized(this) {
+			sendWindow+=bytes;
+			while(sendWindow>0 && !held.isEmpty()) {
+				Held frame = held.poll();
+				sendWindow-=frame.size;
+				heldBytes-=frame.size;
+				parent.write(frame.frame,frame.lane,frame.future);
+			}
+			if(!drained()) return;
+		}
+		writabilityChanged(true);
+	}
+
+	/**
+	 * Called holding this whenever held frames are released.
+	 * @return true if the stream has just become writable again
+	 */
+	private boolean drained() {
+		if(!unwritable || heldBytes>=Math.min(config.getOutboundLowWatermark(),config.getOutboundHighWatermark())) return false;
+		unwritable=false;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * @return true if both the stream and its connection are writable
+	 */
+	@Override
+	public boolean isWritable() {
+		return !unwritable && parent.isWritable();
+	}
+
+	/**
+	 * Wait for the connection and then the stream to become writable.
+	 */
+	@Override
+	protected boolean awaitWritable(long timeout) {
+		long deadline = System.currentTimeMillis()+timeout;
+		if(!parent.awaitWritable(timeout)) return false;
+		// the window is given back by the connection's reader, which can not wait for itself
+		if(Thread.currentThread()==parent) return !unwritable;
+		synchronized(this) {
+			try {
+				while(unwritable) {
+					long remaining = deadline-System.currentTimeMillis();
+					if(remaining<=0) return false;
+					wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !parent.isStopped();
+	}
+
+	/**
+	 * Make room on the connection, if it is unwritable, and then drop the
+	 * oldest frames the stream holds on the lane until the message fits under
+	 * the high watermark. Frames are only dropped before they have used any
+	 * of the window.
+	 */
+	@Override
+	protected boolean dropOldest(Lane lane, int size) {
+		if(!parent.isWritable() && !parent.dropOldest(lane,size)) return false;
+		List<Held> removed = new ArrayList<>();
+		boolean nowWritable;
+		synchronized(this) {
+			if(!unwritable) return true;
+			long needed = heldBytes+size-config.getOutboundHighWatermark();
+			long available=0;
+			for(Held frame : held) {
+				if(frame.lane==lane) available+=frame.size;
+			}
+			if(available<needed) return false;
+			Iterator<Held> frames = held.iterator();
+			while(needed>0) {
+				Held frame = frames.next();
+				if(frame.lane!=lane) continue;
+				frames.remove();
+				removed.add(frame);
+				heldBytes-=frame.size;
+				needed-=frame.size;
+			}
+			dropped+=removed.size();
+			nowWritable=drained();
+		}
+		for(Held frame : removed) {
+			if(frame.future!=null) frame.future.complete(false);
+		}
+		if(nowWritable) writabilityChanged(true);
+		return true;
+	}
+
+	/**
+	 * Disconnect the connection if it is the connection that is not keeping
+	 * up, otherwise just close the stream.
+	 */
+	@Override
+	protected void disconnectSlow() {
+		if(!parent.isWritable()) {
+			parent.disconnectSlow();
+		} else {
+			log.warning("closing stream, the other endpoint is not keeping up: "+getOtherEndpointId());
+			transportFailed();
+		}
+	}
+
+	/**
+	 * @return the bytes of the frames the stream holds
+	 */
+	@Override
+	public synchronized long getOutboundBytesInFlight() {
+		return heldBytes;
+	}
+
+	/**
+	 * @return the number of held frames dropped to make room for newer ones
+	 */
+	@Override
+	public synchronized long getOutboundDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Process a message received for this stream, and give the window back
+	 * once half of it has been used.
+	 * @param array
+	 * @param offset of the message, after the stream's header
+	 * @param length of the message
+	 */
+	void received(byte[] array, int offset, int length) {
+		receive(array,offset,length);
+		long giveBack=0;
+		synchronized(this) {
+			consumed+=length;
+			if(consumed>=config.getStreamWindow()/2) {
+				giveBack=consumed;
+				consumed=0;
+			}
+		}
+		if(giveBack>0) parent.writeStreamControl(windowFrame,id,giveBack);
+	}
+
+	/**
+	 * The stream's messages are read by the connection, so stop the
+	 * connection reading until {@link #resumeReading()}.
+	 */
+	@Override
+	public void pauseReading() {
+		synchronized(this) {
+			readPauses++;
+		}
+		parent.pauseReading();
+	}
+
+	/**
+	 * Resume a pause of the connection's reading made for this stream.
+	 */
+	@Override
+	public void resumeReading() {
+		synchronized(this) {
+			if(readPauses==0) return;
+			readPauses--;
+		}
+		parent.resumeReading();
+	}
+
+	/**
+	 * Let the connection forget the stream, and drop anything still held.
+	 * The connection does not stay paused for a stream that is closed.
+	 */
+	@Override
+	protected void releaseTransport() {
+		parent.streamClosed(this);
+		int pauses;
+		synchronized(this) {
+			pauses=readPauses;
+			readPauses=0;
+		}
+		for(int i=0;i<pauses;i++) parent.resumeReading();
+		synchronized(this) {
+			for(Held frame : held) {
+				if(frame.future!=null) frame.future.complete(false);
+			}
+			held.clear();
+			heldBytes=0;
+			// nobody waits for a stream that is closed
+			unwritable=false;
+			notifyAll();
+		}
+		log.info("stream has terminated to: "+getOtherEndpointId());
+	}
+
+	/**
+	 * Wait for the stream to be closed.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	@Override
+	public void awaitTermination() throws InterruptedException {
+		awaitTransportClosed();
+	}
+
+	/**
+	 * @return the time in ms that bytes were last received on the connection
+	 */
+	@Override
+	public long getLastReceived() {
+		return parent.getLastReceived();
+	}
+
+	/**
+	 * @return the framing of the connection
+	 */
+	@Override
+	public Framing getFraming() {
+		return parent.getFraming();
+	}
+
+	/**
+	 * @return true if the connection is compressed
+	 */
+	@Override
+	public boolean isCompressing() {
+		return parent.isCompressing();
+	}
+
+	/**
+	 * @return the compression ratio of the connection
+	 */
+	@Override
+	public double getCompressionRatio() {
+		return parent.getCompressionRatio();
+	}
+
+	/**
+	 * @return the time in ns spent compressing the connection
+	 */
+	@Override
+	public long getCompressionNanos() {
+		return parent.getCompressionNanos();
+	}
+
+	/**
+	 * @return the id of the other endpoint and of the stream
+	 */
+	@Override
+	public String getOtherEndpointId() {
+		return parent.getOtherEndpointId()+"#"+id;
+	}
+
+	/**
+	 * @param array
+	 * @param offset
+	 * @param length
+	 * @return true if the payload is a stream frame rather than a message
+	 */
+	static boolean isStreamFrame(byte[] array, int offset, int length) {
+		if(length==0) return false;
+		byte first = array[offset];
+		return first==dataFrame || first==windowFrame || first==closeFrame;
+	}
+
+	/**
+	 * Read an unsigned varint.
+	 * @param array
+	 * @param position holding the offset to read from, moved past the varint
+	 * @param end of the payload
+	 * @return the value
+	 * @throws InvalidFrame if the varint is cut short or too long
+	 */
+	static long getVarint(byte[] array, int[] position, int end) throws InvalidFrame {
+		long value=0;
+		for(int shift=0;shift<63;shift+=7) {
+			if(position[0]>=end) throw new InvalidFrame("stream frame is cut short");
+			byte b = array[position[0]++];
+			value|=(long)(b & 0x7F)<<shift;
+			if((b & 0x80)==0) return value;
+		}
+		throw new InvalidFrame("stream frame has a varint that is too long");
+	}
+}
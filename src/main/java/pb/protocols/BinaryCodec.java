@@ -0,0 +1,352 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import pb.protocols.event.EventBatch;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.rpc.RpcProtocol;
+import pb.protocols.rpc.RpcReply;
+import pb.protocols.rpc.RpcRequest;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * A compact encoding of the messages that are known ahead of time. Rather
+ * than spelling out the keys of the message document, the protocol and the
+ * message are given by small integer ids and the remaining parameters are
+ * written in a fixed order. The layout is:
+ * <pre>
+ * marker, protocol id, message id, timeout id, parameter...
+ * </pre>
+ * where the ids are unsigned varints, the timeout id is 0 if the message has
+ * none, and each parameter is a one byte tag followed by its value: a varint
+ * length and UTF-8 bytes for a string, a zigzag varint for a number, or a
+ * varint count followed by that many strings for a list of strings.
+ * <br/>
+ * Parameters may be added to the end of an entry. Trailing parameters
+ * that are absent are not written, and a payload that stops before the end
+ * of its entry's parameters leaves the rest absent, so older and newer
+ * endpoints can still read each other's messages.
+ * <br/>
+ * The marker can never start a JSON message, which is how a received payload
+ * is told apart from one that was encoded as JSON.
+ * <br/>
+ * To add a message, add a line to the table in the static initialiser. The
+ * ids must never be reused since both endpoints must agree on them.
+ *
+ * @see {@link pb.protocols.Codec}
+ * @author aaron
+ *
+ */
+public class BinaryCodec {
+
+	/**
+	 * First byte of every binary payload.
+	 */
+	public static final byte marker = (byte)0xB1;
+
+	private static final byte tagNull=0;
+	private static final byte tagString=1;
+	private static final byte tagLong=2;
+	private static final byte tagTrue=3;
+	private static final byte tagFalse=4;
+	private static final byte tagStrings=5;
+
+	/**
+	 * What the codec knows about a message.
+	 */
+	private static class Entry {
+		final int protocolId;
+		final String protocolName;
+		final int messageId;
+		final String name;
+		final Message.Type type;
+		final String[] parameters;
+		Entry(int protocolId,String protocolName,int messageId,String name,
+				Message.Type type,String... parameters) {
+			this.protocolId=protocolId;
+			this.protocolName=protocolName;
+			this.messageId=messageId;
+			this.name=name;
+			this.type=type;
+			this.parameters=parameters;
+		}
+		int key() {
+			return key(protocolId,messageId);
+		}
+		static int key(int protocolId,int messageId) {
+			return (protocolId<<16) | messageId;
+		}
+	}
+
+	private static final HashMap<String,Entry> byName = new HashMap<>();
+	private static final HashMap<Integer,Entry> byId = new HashMap<>();
+
+	static {
+		add(new Entry(1,SessionProtocol.protocolName,1,SessionStartRequest.name,Message.Type.Request,"codecs","streamWindow","compression"));
+		add(new Entry(1,SessionProtocol.protocolName,2,SessionStartReply.name,Message.Type.Reply,"codec","streamWindow","compression"));
+		add(new Entry(1,SessionProtocol.protocolName,3,SessionStopRequest.name,Message.Type.Request));
+		add(new Entry(1,SessionProtocol.protocolName,4,SessionStopReply.name,Message.Type.Reply));
+		add(new Entry(2,KeepAliveProtocol.protocolName,1,KeepAliveRequest.name,Message.Type.Request));
+		add(new Entry(2,KeepAliveProtocol.protocolName,2,KeepAliveReply.name,Message.Type.Reply));
+		add(new Entry(3,EventProtocol.protocolName,1,EventRequest.name,Message.Type.Request,"eventName","eventData","windowed","unacknowledged"));
+		add(new Entry(3,EventProtocol.protocolName,2,EventReply.name,Message.Type.Reply));
+		add(new Entry(3,EventProtocol.protocolName,3,EventBatch.name,Message.Type.Request,"events","windowed","unacknowledged"));
+		add(new Entry(4,RpcProtocol.protocolName,1,RpcRequest.name,Message.Type.Request,"method","data"));
+		add(new Entry(4,RpcProtocol.protocolName,2,RpcReply.name,Message.Type.Reply,"result","error"));
+	}
+
+	private static void add(Entry entry) {
+		byName.put(entry.name,entry);
+		byId.put(entry.key(),entry);
+	}
+
+	/**
+	 * Encode a message.
+	 * @param msg
+	 * @return the payload, or null if the message can not be encoded by this
+	 * codec, in which case it should be sent as JSON
+	 */
+	static byte[] encode(Message msg) {
+		Entry entry = byName.get(msg.getName());
+		if(entry==null) return null;
+		Writer writer = new Writer();
+		writer.put(marker);
+		writer.putVarint(entry.protocolId);
+		writer.putVarint(entry.messageId);
+		writer.putVarint(msg.getTimeoutId());
+		int count = entry.parameters.length;
+		while(count>0 && msg.doc.get(entry.parameters[count-1])==null) count--;
+		for(int i=0;i<count;i++) {
+			String parameter = entry.parameters[i];
+			Object value = msg.doc.get(parameter);
+			if(value==null) {
+				writer.put(tagNull);
+			} else if(value instanceof String) {
+				writer.put(tagString);
+				writer.putString((String)value);
+			} else if(value instanceof Long || value instanceof Integer) {
+				long l = ((Number)value).longValue();
+				writer.put(tagLong);
+				writer.putVarint((l<<1) ^ (l>>63));
+			} else if(value instanceof Boolean) {
+				writer.put((Boolean)value?tagTrue:tagFalse);
+			} else if(value instanceof ArrayList) {
+				ArrayList<?> list = (ArrayList<?>)value;
+				writer.put(tagStrings);
+				writer.putVarint(list.size());
+				for(Object element : list) {
+					// only lists of strings have a tag
+					if(!(element instanceof String)) return null;
+					writer.putString((String)element);
+				}
+			} else {
+				// not something we have a tag for
+				return null;
+			}
+		}
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Copy a payload that was encoded without a timeout id, with the given
+	 * timeout id in its place.
+	 * @param payload from {@link #encode(Message)}
+	 * @param timeoutId
+	 * @return the new payload
+	 */
+	static byte[] withTimeoutId(byte[] payload,long timeoutId) {
+		Reader reader = new Reader(payload,1,payload.length);
+		try {
+			readEntry(reader);
+		} catch (InvalidMessage e) {
+			throw new IllegalArgumentException("not a payload encoded by the binary codec");
+		}
+		int at = reader.position;
+		Writer writer = new Writer(payload.length+9);
+		writer.put(payload,0,at);
+		writer.putVarint(timeoutId);
+		// the timeout id being replaced is a single zero byte
+		writer.put(payload,at+1,payload.length-at-1);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Read just the header of a payload that starts with the {@link #marker}.
+	 * @param header to fill in
+	 * @throws InvalidMessage if the payload is not a message known to the codec
+	 */
+	static void readHeader(MessageHeader header) throws InvalidMessage {
+		Reader reader = new Reader(header.array,header.offset+1,header.offset+header.length);
+		Entry entry = readEntry(reader);
+		header.name=entry.name;
+		header.protocolName=entry.protocolName;
+		header.type=entry.type;
+		header.timeoutId=reader.getVarint();
+	}
+
+	/**
+	 * Decode a payload that starts with the {@link #marker}. The payload is
+	 * copied, since it may be kept after the received bytes are reused, but
+	 * the strings in it are not decoded until they are asked for.
+	 * @param header of the payload
+	 * @return the document that the message would have had if sent as JSON
+	 * @throws InvalidMessage if the payload is not a message known to the codec
+	 */
+	static Document decode(MessageHeader header) throws InvalidMessage {
+		byte[] payload = Arrays.copyOfRange(header.array,header.offset,header.offset+header.length);
+		Reader reader = new Reader(payload,1,payload.length);
+		Entry entry = readEntry(reader);
+		Document doc = new Document();
+		doc.append("name",entry.name);
+		doc.append("protocolName",entry.protocolName);
+		doc.append("type",entry.type.toString());
+		long timeoutId = reader.getVarint();
+		if(timeoutId!=0) doc.append("timeoutId",timeoutId);
+		for(String parameter : entry.parameters) {
+			if(reader.atEnd()) break;
+			switch(reader.get()) {
+			case tagNull:
+				// absent and null are the same to json-simple
+				break;
+			case tagString:
+				doc.put(parameter,reader.getRawString());
+				break;
+			case tagLong:
+				long l = reader.getVarint();
+				doc.append(parameter,(l>>>1) ^ -(l & 1));
+				break;
+			case tagTrue:
+				doc.append(parameter,true);
+				break;
+			case tagFalse:
+				doc.append(parameter,false);
+				break;
+			case tagStrings:
+				long count = reader.getVarint();
+				// every string takes at least a byte
+				if(count<0 || count>header.length) throw new InvalidMessage();
+				ArrayList<Object> list = new ArrayList<>((int)count);
+				for(int i=0;i<count;i++) list.add(reader.getRawString().materialize());
+				doc.put(parameter,list);
+				break;
+			default:
+				throw new InvalidMessage();
+			}
+		}
+		return doc;
+	}
+
+	private static Entry readEntry(Reader reader) throws InvalidMessage {
+		int protocolId = (int)reader.getVarint();
+		int messageId = (int)reader.getVarint();
+		Entry entry = byId.get(Entry.key(protocolId,messageId));
+		if(entry==null) throw new InvalidMessage();
+		return entry;
+	}
+
+	/**
+	 * Builds a payload.
+	 */
+	private static class Writer {
+		private byte[] bytes;
+		private int size=0;
+
+		Writer() {
+			this(64);
+		}
+
+		Writer(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void put(byte b) {
+			ensure(1);
+			bytes[size++]=b;
+		}
+
+		void put(byte[] b,int offset,int length) {
+			ensure(length);
+			System.arraycopy(b,offset,bytes,size,length);
+			size+=length;
+		}
+
+		void putVarint(long value) {
+			ensure(10);
+			while((value & ~0x7FL)!=0) {
+				bytes[size++]=(byte)((value & 0x7F) | 0x80);
+				value>>>=7;
+			}
+			bytes[size++]=(byte)value;
+		}
+
+		void putString(String s) {
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			putVarint(utf8.length);
+			ensure(utf8.length);
+			System.arraycopy(utf8,0,bytes,size,utf8.length);
+			size+=utf8.length;
+		}
+
+		private void ensure(int n) {
+			if(size+n>bytes.length) bytes=Arrays.copyOf(bytes,Math.max(bytes.length*2,size+n));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes,size);
+		}
+	}
+
+	/**
+	 * Reads a payload, throwing InvalidMessage rather than running off the end.
+	 */
+	private static class Reader {
+		private final byte[] bytes;
+		private int position;
+		private final int limit;
+
+		Reader(byte[] bytes,int position,int limit) {
+			this.bytes=bytes;
+			this.position=position;
+			this.limit=limit;
+		}
+
+		boolean atEnd() {
+			return position>=limit;
+		}
+
+		byte get() throws InvalidMessage {
+			if(position>=limit) throw new InvalidMessage();
+			return bytes[position++];
+		}
+
+		long getVarint() throws InvalidMessage {
+			long value=0;
+			for(int shift=0;shift<64;shift+=7) {
+				byte b = get();
+				value|=(long)(b & 0x7F)<<shift;
+				if((b & 0x80)==0) return value;
+			}
+			throw new InvalidMessage();
+		}
+
+		Document.RawUtf8 getRawString() throws InvalidMessage {
+			long length = getVarint();
+			if(length<0 || length>limit-position) throw new InvalidMessage();
+			Document.RawUtf8 s = new Document.RawUtf8(bytes,position,(int)length);
+			position+=(int)length;
+			return s;
+		}
+	}
+}
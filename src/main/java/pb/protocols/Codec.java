@@ -0,0 +1,74 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * How a message is turned into the bytes of a frame. Every endpoint starts
+ * out using {@link #JSON}, which all peers understand, and the two endpoints
+ * may agree to switch to {@link #BINARY} when the session starts. Received
+ * messages are decoded whichever codec they were encoded with, see
+ * {@link pb.protocols.Message#toMessage(byte[], int, int)}, so no message is
+ * lost while the two endpoints switch over.
+ *
+ * @see {@link pb.protocols.BinaryCodec}
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @author aaron
+ *
+ */
+public enum Codec {
+	JSON("json"),
+	BINARY("binary");
+
+	/**
+	 * The name used for the codec when negotiating.
+	 */
+	public final String codecName;
+
+	private Codec(String codecName) {
+		this.codecName=codecName;
+	}
+
+	/**
+	 * Encode a message.
+	 * @param msg
+	 * @return the payload to frame
+	 */
+	public byte[] encode(Message msg) {
+		if(this==BINARY) {
+			byte[] payload = BinaryCodec.encode(msg);
+			// messages the binary codec does not know about are still sent
+			if(payload!=null) return payload;
+		}
+		return msg.toJsonString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Give a payload encoded from a message without a timeout id the given
+	 * timeout id, without encoding the message again.
+	 * @param payload from {@link #encode(Message)}, of a message without a
+	 * timeout id, which is not changed
+	 * @param timeoutId
+	 * @return the payload with the timeout id, the same payload if it is 0
+	 */
+	public static byte[] withTimeoutId(byte[] payload,long timeoutId) {
+		if(timeoutId==0) return payload;
+		if(payload.length>0 && payload[0]==BinaryCodec.marker) return BinaryCodec.withTimeoutId(payload,timeoutId);
+		// the timeout id is appended to a json message as its last field
+		byte[] field = (",\"timeoutId\":"+timeoutId+"}").getBytes(StandardCharsets.UTF_8);
+		byte[] patched = Arrays.copyOf(payload,payload.length-1+field.length);
+		System.arraycopy(field,0,patched,payload.length-1,field.length);
+		return patched;
+	}
+
+	/**
+	 * @param codecName
+	 * @return the codec with the given name, or null if there is none
+	 */
+	public static Codec forName(String codecName) {
+		for(Codec codec : values()) {
+			if(codec.codecName.equals(codecName)) return codec;
+		}
+		return null;
+	}
+}
@@ -1,11 +1,12 @@
 package pb.protocols;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  * Helper class for using JSON. Example usage:
@@ -27,122 +28,298 @@ import org.json.simple.parser.ParseException;
  * ArrayList<Document> docs2 = (ArrayList<Document>) doc3.get("docList");
  * }
  * </pre>
+ * The fields are kept in a pair of small arrays, in the order they were
+ * added, which for the handful of fields in a message is quicker to search
+ * than a hash map. Nested objects and arrays in a parsed document, and long
+ * strings, are kept undecoded until they are asked for, and are written back
+ * out as is.
+ *
+ * @see {@link pb.protocols.JsonTokenizer}
  * @author aaron
  *
  */
 public class Document {
-	
-	protected JSONObject obj;
-	
+
+	/**
+	 * A value that has not been decoded yet.
+	 */
+	static abstract class Raw {
+		/**
+		 * @return the decoded value
+		 */
+		abstract Object materialize();
+		/**
+		 * @return true if the value is a string
+		 */
+		abstract boolean isString();
+		/**
+		 * Write the value as JSON.
+		 * @param json
+		 */
+		abstract void write(StringBuilder json);
+	}
+
+	/**
+	 * A string, object or array in JSON text.
+	 */
+	static final class RawJson extends Raw {
+		final String text;
+		final int start;
+		final int end;
+		RawJson(String text,int start,int end) {
+			this.text=text;
+			this.start=start;
+			this.end=end;
+		}
+		@Override
+		Object materialize() {
+			try {
+				switch(text.charAt(start)) {
+				case '{': return JsonTokenizer.get().parseObject(text,start,end);
+				case '[': return JsonTokenizer.get().parseArray(text,start,end);
+				default: return JsonTokenizer.get().parseString(text,start,end);
+				}
+			} catch (JsonTokenizer.MalformedJson e) {
+				// only the brackets were checked when it was skipped over
+				return null;
+			}
+		}
+		@Override
+		boolean isString() {
+			return text.charAt(start)=='"';
+		}
+		@Override
+		void write(StringBuilder json) {
+			json.append(text,start,end);
+		}
+	}
+
+	/**
+	 * A string as UTF-8 bytes.
+	 */
+	static final class RawUtf8 extends Raw {
+		final byte[] bytes;
+		final int offset;
+		final int length;
+		RawUtf8(byte[] bytes,int offset,int length) {
+			this.bytes=bytes;
+			this.offset=offset;
+			this.length=length;
+		}
+		@Override
+		Object materialize() {
+			return new String(bytes,offset,length,StandardCharsets.UTF_8);
+		}
+		@Override
+		boolean isString() {
+			return true;
+		}
+		@Override
+		void write(StringBuilder json) {
+			writeString(json,(String)materialize());
+		}
+	}
+
+	private String[] keys;
+	private Object[] values;
+	private int size=0;
+
 	public Document(){
-		obj=new JSONObject();
+		keys=new String[8];
+		values=new Object[8];
 	}
-	
+
+	/**
+	 * Copy a json-simple object.
+	 * @param obj
+	 */
 	public Document(JSONObject obj){
-		this.obj = obj;
+		this();
+		for(Object o : obj.entrySet()) {
+			Map.Entry<?,?> entry = (Map.Entry<?,?>) o;
+			put((String)entry.getKey(),fromJsonSimple(entry.getValue()));
+		}
 	}
-	
-	@SuppressWarnings("unchecked")
-	public void append(String key,String val){
-		if(val==null){
-			obj.put(key, null);
-		} else {
-			obj.put(key, new String(val));
+
+	private static Object fromJsonSimple(Object o) {
+		if(o instanceof JSONObject) return new Document((JSONObject)o);
+		if(o instanceof JSONArray) {
+			ArrayList<Object> list = new ArrayList<Object>();
+			for(Object l : (JSONArray)o) list.add(fromJsonSimple(l));
+			return list;
+		}
+		return o;
+	}
+
+	/**
+	 * Set a field, replacing any previous value.
+	 * @param key
+	 * @param val
+	 */
+	void put(String key,Object val) {
+		int i=indexOf(key);
+		if(i>=0) {
+			values[i]=val;
+			return;
+		}
+		if(size==keys.length) {
+			keys=Arrays.copyOf(keys,size*2);
+			values=Arrays.copyOf(values,size*2);
+		}
+		keys[size]=key;
+		values[size++]=val;
+	}
+
+	private int indexOf(String key) {
+		for(int i=0;i<size;i++) {
+			if(keys[i].equals(key)) return i;
 		}
+		return -1;
+	}
+
+	public void append(String key,String val){
+		put(key,val);
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,Document doc){
-		obj.put(key, doc.obj);
+		put(key,doc);
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,boolean val){
-		obj.put(key, Boolean.valueOf(val));
+		put(key,Boolean.valueOf(val));
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,ArrayList<?> val){
-		JSONArray list = new JSONArray();
-		for(Object o : val){
-			if(o instanceof Document){
-				list.add(((Document)o).obj);
-			} else {
-				list.add(o);
-			}
-		}
-		obj.put(key,list);
+		put(key,new ArrayList<Object>(val));
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,long val){
-		obj.put(key, Long.valueOf(val));
+		put(key,Long.valueOf(val));
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,int val){
-		obj.put(key, Integer.valueOf(val));
+		put(key,Integer.valueOf(val));
 	}
-	
+
 	public String toJson(){
-		return obj.toJSONString();
+		StringBuilder json = new StringBuilder(16*size+2);
+		write(json);
+		return json.toString();
 	}
-	
+
+	private void write(StringBuilder json) {
+		json.append('{');
+		for(int i=0;i<size;i++) {
+			if(i>0) json.append(',');
+			writeString(json,keys[i]);
+			json.append(':');
+			writeValue(json,values[i]);
+		}
+		json.append('}');
+	}
+
+	private static void writeValue(StringBuilder json,Object o) {
+		if(o==null) {
+			json.append("null");
+		} else if(o instanceof String) {
+			writeString(json,(String)o);
+		} else if(o instanceof Raw) {
+			((Raw)o).write(json);
+		} else if(o instanceof Document) {
+			((Document)o).write(json);
+		} else if(o instanceof ArrayList) {
+			json.append('[');
+			boolean first=true;
+			for(Object l : (ArrayList<?>)o) {
+				if(!first) json.append(',');
+				first=false;
+				writeValue(json,l);
+			}
+			json.append(']');
+		} else {
+			json.append(o.toString());
+		}
+	}
+
+	/**
+	 * Write a string with the same escapes as json-simple.
+	 */
+	private static void writeString(StringBuilder json,String s) {
+		json.append('"');
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '"': json.append("\\\""); break;
+			case '\\': json.append("\\\\"); break;
+			case '/': json.append("\\/"); break;
+			case '\b': json.append("\\b"); break;
+			case '\f': json.append("\\f"); break;
+			case '\n': json.append("\\n"); break;
+			case '\r': json.append("\\r"); break;
+			case '\t': json.append("\\t"); break;
+			default:
+				if(c<=0x1F || (c>=0x7F && c<=0x9F) || (c>=0x2000 && c<=0x20FF)) {
+					String hex = Integer.toHexString(c).toUpperCase();
+					json.append("\\u");
+					for(int k=hex.length();k<4;k++) json.append('0');
+					json.append(hex);
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+
 	public static Document parse(String json) {
-		JSONParser parser = new JSONParser();
 		try {
-			JSONObject obj  = (JSONObject) parser.parse(json);
-			return new Document(obj);
-		} catch (ParseException e) {
-			return new Document();
-		} catch (ClassCastException e){
+			return JsonTokenizer.get().parseObject(json,0,json.length());
+		} catch (JsonTokenizer.MalformedJson e) {
 			return new Document();
 		}
 	}
-	
+
 	public boolean containsKey(String key){
-		return obj.containsKey(key);
+		return indexOf(key)>=0;
 	}
-	
+
 	public String getString(String key){
-		return (String) obj.get(key);
-	}
-	
-	private ArrayList<Object> getList(JSONArray o){
-		ArrayList<Object> list = new ArrayList<Object>();
-		for(Object l : (JSONArray)o){
-			if(l instanceof JSONObject){
-				list.add(new Document((JSONObject) l));
-			} else if(l instanceof JSONArray){
-				list.add(getList((JSONArray) l));
-			} else {
-				list.add(l);
-			}
-		}
-		return list;
+		return (String) get(key);
 	}
-	
+
 	public Object get(String key){
-		Object o = obj.get(key);
-		if(o instanceof JSONObject){
-			return (Object) new Document((JSONObject) o);
-		} else if(o instanceof JSONArray){
-			return getList((JSONArray)o);
-		} else {
-			return o;
+		int i=indexOf(key);
+		if(i<0) return null;
+		Object o = values[i];
+		if(o instanceof Raw) {
+			// decode it now that it is needed
+			o = ((Raw)o).materialize();
+			values[i]=o;
 		}
-		
+		return o;
+	}
+
+	/**
+	 * Check the type of a field without decoding it.
+	 * @param key
+	 * @return true if the field is a string
+	 */
+	public boolean isString(String key){
+		int i=indexOf(key);
+		if(i<0) return false;
+		Object o = values[i];
+		return o instanceof String || (o instanceof Raw && ((Raw)o).isString());
 	}
-	
+
 	public int getInteger(String key){
-		return (int) obj.get(key);
+		return ((Number) get(key)).intValue();
 	}
-	
+
 	public long getLong(String key){
-		return (long) obj.get(key);
+		return ((Number) get(key)).longValue();
 	}
-	
+
 	public boolean getBoolean(String key){
-		return (boolean) obj.get(key);
+		return (boolean) get(key);
 	}
 }
@@ -0,0 +1,89 @@
+package pb.protocols;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import pb.managers.endpoint.Framing;
+
+/**
+ * A message that is encoded at most once per codec, however many endpoints
+ * it is sent to. Sent without a timeout id, every endpoint using the same
+ * codec and framing is handed the same frame bytes. Sent with a timeout id,
+ * each endpoint gets a copy of the payload with its own timeout id put in,
+ * see {@link pb.protocols.Codec#withTimeoutId(byte[], long)}, which is much
+ * cheaper than encoding the message again.
+ * <br/>
+ * The message must not be changed once it has been wrapped, and must not
+ * have a timeout id of its own, since each endpoint gives it one when it is
+ * sent.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#send(EncodedMessage)}
+ * @author aaron
+ *
+ */
+public final class EncodedMessage {
+
+	private final Message msg;
+
+	/**
+	 * The payload by codec, and the frame by codec and framing, once encoded.
+	 */
+	private final byte[][] payloads = new byte[Codec.values().length][];
+	private final ByteBuffer[] frames = new ByteBuffer[Codec.values().length*Framing.values().length];
+
+	/**
+	 * @param msg to encode, without a timeout id
+	 */
+	public EncodedMessage(Message msg) {
+		if(msg.getTimeoutId()!=0)
+			throw new IllegalArgumentException("the message is given a timeout id each time it is sent");
+		this.msg=msg;
+	}
+
+	/**
+	 * @return the message that is encoded
+	 */
+	public Message getMessage() {
+		return msg;
+	}
+
+	/**
+	 * @param codec
+	 * @return the payload without a timeout id, which must not be changed
+	 */
+	public synchronized byte[] getPayload(Codec codec) {
+		byte[] payload = payloads[codec.ordinal()];
+		if(payload==null) {
+			payload = codec.encode(msg);
+			payloads[codec.ordinal()]=payload;
+		}
+		return payload;
+	}
+
+	/**
+	 * @param codec
+	 * @param timeoutId
+	 * @return the payload with the timeout id, which must not be changed
+	 */
+	public byte[] getPayload(Codec codec,long timeoutId) {
+		return Codec.withTimeoutId(getPayload(codec),timeoutId);
+	}
+
+	/**
+	 * @param codec
+	 * @param framing
+	 * @param maxFrameSize largest payload allowed
+	 * @return the frame of the payload without a timeout id, ready to write,
+	 * sharing its bytes with every other frame returned
+	 * @throws IOException if the payload is too large for the framing
+	 */
+	public synchronized ByteBuffer getFrame(Codec codec,Framing framing,int maxFrameSize) throws IOException {
+		byte[] payload = getPayload(codec);
+		int i = codec.ordinal()*Framing.values().length+framing.ordinal();
+		if(frames[i]==null || payload.length>maxFrameSize) {
+			// the framing decides whether the payload is too large for it
+			frames[i] = framing.encode(payload,maxFrameSize);
+		}
+		return frames[i].duplicate();
+	}
+}
@@ -0,0 +1,322 @@
+package pb.protocols;
+
+import java.util.ArrayList;
+
+/**
+ * Parses JSON text into a {@link pb.protocols.Document}. Parsing is a single
+ * pass over the characters with no intermediate tokens. Only the top level of
+ * an object is parsed straight away, nested objects and arrays, and long
+ * strings, are skipped over and kept as text, to be parsed if and when they
+ * are asked for.
+ * <br/>
+ * A tokenizer holds scratch space that is reused from one parse to the next,
+ * so each thread uses its own, see {@link #get()}.
+ *
+ * @see {@link pb.protocols.Document#parse(String)}
+ * @author aaron
+ *
+ */
+final class JsonTokenizer {
+
+	/**
+	 * The JSON is not valid.
+	 */
+	@SuppressWarnings("serial")
+	static class MalformedJson extends Exception {
+	}
+
+	private static final ThreadLocal<JsonTokenizer> tokenizers =
+			ThreadLocal.withInitial(()->{return new JsonTokenizer();});
+
+	/**
+	 * @return the calling thread's tokenizer
+	 */
+	static JsonTokenizer get() {
+		return tokenizers.get();
+	}
+
+	/**
+	 * Strings at least this long are not decoded until they are asked for.
+	 * Shorter ones cost less to decode than to keep track of.
+	 */
+	private static final int lazyStringLength=32;
+
+	/**
+	 * Scratch space for strings that contain escapes.
+	 */
+	private final StringBuilder scratch = new StringBuilder();
+
+	private String text;
+	private int position;
+	private int end;
+
+	/**
+	 * Parse a JSON object.
+	 * @param text
+	 * @param start index of the opening brace
+	 * @param end index after the closing brace
+	 * @return the document
+	 * @throws MalformedJson if the text is not a single JSON object
+	 */
+	Document parseObject(String text,int start,int end) throws MalformedJson {
+		this.text=text;
+		this.position=start;
+		this.end=end;
+		try {
+			skipWhitespace();
+			Document doc = object();
+			skipWhitespace();
+			if(position!=end) throw new MalformedJson();
+			return doc;
+		} finally {
+			this.text=null;
+		}
+	}
+
+	/**
+	 * Parse a JSON array.
+	 * @param text
+	 * @param start index of the opening bracket
+	 * @param end index after the closing bracket
+	 * @return the list of values
+	 * @throws MalformedJson if the text is not a single JSON array
+	 */
+	ArrayList<Object> parseArray(String text,int start,int end) throws MalformedJson {
+		this.text=text;
+		this.position=start;
+		this.end=end;
+		try {
+			skipWhitespace();
+			ArrayList<Object> list = array();
+			skipWhitespace();
+			if(position!=end) throw new MalformedJson();
+			return list;
+		} finally {
+			this.text=null;
+		}
+	}
+
+	/**
+	 * Parse a JSON string.
+	 * @param text
+	 * @param start index of the opening quote
+	 * @param end index after the closing quote
+	 * @return the string
+	 * @throws MalformedJson if the text is not a single JSON string
+	 */
+	String parseString(String text,int start,int end) throws MalformedJson {
+		this.text=text;
+		this.position=start;
+		this.end=end;
+		try {
+			String s = string();
+			if(position!=end) throw new MalformedJson();
+			return s;
+		} finally {
+			this.text=null;
+		}
+	}
+
+	private Document object() throws MalformedJson {
+		expect('{');
+		Document doc = new Document();
+		skipWhitespace();
+		if(peek()=='}') {
+			position++;
+			return doc;
+		}
+		while(true) {
+			skipWhitespace();
+			String key = string();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			char c = peek();
+			if(c=='{' || c=='[') {
+				// nested, keep as text until needed
+				int start=position;
+				skipContainer();
+				doc.put(key,new Document.RawJson(text,start,position));
+			} else if(c=='"') {
+				int start=position;
+				skipString();
+				if(position-start<lazyStringLength) {
+					position=start;
+					doc.put(key,string());
+				} else {
+					doc.put(key,new Document.RawJson(text,start,position));
+				}
+			} else {
+				doc.put(key,scalar());
+			}
+			skipWhitespace();
+			c = next();
+			if(c=='}') return doc;
+			if(c!=',') throw new MalformedJson();
+		}
+	}
+
+	private ArrayList<Object> array() throws MalformedJson {
+		expect('[');
+		ArrayList<Object> list = new ArrayList<Object>();
+		skipWhitespace();
+		if(peek()==']') {
+			position++;
+			return list;
+		}
+		while(true) {
+			skipWhitespace();
+			char c = peek();
+			if(c=='{') {
+				list.add(object());
+			} else if(c=='[') {
+				list.add(array());
+			} else {
+				list.add(scalar());
+			}
+			skipWhitespace();
+			c = next();
+			if(c==']') return list;
+			if(c!=',') throw new MalformedJson();
+		}
+	}
+
+	private Object scalar() throws MalformedJson {
+		char c = peek();
+		switch(c) {
+		case '"':
+			return string();
+		case 't':
+			literal("true");
+			return Boolean.TRUE;
+		case 'f':
+			literal("false");
+			return Boolean.FALSE;
+		case 'n':
+			literal("null");
+			return null;
+		default:
+			return number();
+		}
+	}
+
+	private String string() throws MalformedJson {
+		expect('"');
+		int start=position;
+		// the common case, no escapes so the string is a plain substring
+		while(position<end) {
+			char c = text.charAt(position);
+			if(c=='"') return text.substring(start,position++);
+			if(c=='\\') break;
+			position++;
+		}
+		scratch.setLength(0);
+		scratch.append(text,start,position);
+		while(true) {
+			char c = next();
+			if(c=='"') return scratch.toString();
+			if(c!='\\') {
+				scratch.append(c);
+				continue;
+			}
+			c = next();
+			switch(c) {
+			case '"': case '\\': case '/': scratch.append(c); break;
+			case 'b': scratch.append('\b'); break;
+			case 'f': scratch.append('\f'); break;
+			case 'n': scratch.append('\n'); break;
+			case 'r': scratch.append('\r'); break;
+			case 't': scratch.append('\t'); break;
+			case 'u':
+				if(position+4>end) throw new MalformedJson();
+				try {
+					scratch.append((char)Integer.parseInt(text.substring(position,position+4),16));
+				} catch (NumberFormatException e) {
+					throw new MalformedJson();
+				}
+				position+=4;
+				break;
+			default: throw new MalformedJson();
+			}
+		}
+	}
+
+	private Object number() throws MalformedJson {
+		int start=position;
+		boolean integral=true;
+		while(position<end) {
+			char c = text.charAt(position);
+			if(c>='0' && c<='9' || c=='-' || c=='+') {
+				position++;
+			} else if(c=='.' || c=='e' || c=='E') {
+				integral=false;
+				position++;
+			} else break;
+		}
+		if(start==position) throw new MalformedJson();
+		try {
+			if(integral) return Long.valueOf(Long.parseLong(text,start,position,10));
+			return Double.valueOf(text.substring(start,position));
+		} catch (NumberFormatException e) {
+			throw new MalformedJson();
+		}
+	}
+
+	/**
+	 * Move past an object or array without parsing it.
+	 */
+	private void skipContainer() throws MalformedJson {
+		int depth=0;
+		while(position<end) {
+			char c = text.charAt(position++);
+			if(c=='"') {
+				position--;
+				skipString();
+			} else if(c=='{' || c=='[') {
+				depth++;
+			} else if(c=='}' || c==']') {
+				if(--depth==0) return;
+			}
+		}
+		throw new MalformedJson();
+	}
+
+	/**
+	 * Move past a string without decoding it.
+	 */
+	private void skipString() throws MalformedJson {
+		expect('"');
+		while(true) {
+			char c = next();
+			if(c=='"') return;
+			if(c=='\\') next();
+		}
+	}
+
+	private void literal(String literal) throws MalformedJson {
+		if(!text.startsWith(literal,position)) throw new MalformedJson();
+		position+=literal.length();
+	}
+
+	private void skipWhitespace() {
+		while(position<end) {
+			char c = text.charAt(position);
+			if(c!=' ' && c!='\t' && c!='\n' && c!='\r') return;
+			position++;
+		}
+	}
+
+	private void expect(char c) throws MalformedJson {
+		if(next()!=c) throw new MalformedJson();
+	}
+
+	private char peek() throws MalformedJson {
+		if(position>=end) throw new MalformedJson();
+		return text.charAt(position);
+	}
+
+	private char next() throws MalformedJson {
+		if(position>=end) throw new MalformedJson();
+		return text.charAt(position++);
+	}
+}
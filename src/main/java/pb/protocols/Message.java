@@ -1,9 +1,14 @@
 package pb.protocols;
 
+import java.nio.charset.StandardCharsets;
+
+import pb.protocols.event.EventBatch;
 import pb.protocols.event.EventReply;
 import pb.protocols.event.EventRequest;
 import pb.protocols.keepalive.KeepAliveReply;
 import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.rpc.RpcReply;
+import pb.protocols.rpc.RpcRequest;
 import pb.protocols.session.SessionStartReply;
 import pb.protocols.session.SessionStartRequest;
 import pb.protocols.session.SessionStopReply;
@@ -32,6 +37,14 @@ public class Message {
 	 */
 	protected Document doc;
 	
+	// The header parameters are also kept here, so that routing a message
+	// does not have to look them up in the doc.
+	
+	private final String name;
+	private final String protocolName;
+	private final Message.Type type;
+	private long timeoutId=0;
+	
 	/**
 	 * Initialiser when given parameters explicitly.
 	 * @param name the name of the message (its classname by convention)
@@ -39,6 +52,9 @@ public class Message {
 	 * @param type whether its a Request or a Reply message
 	 */
 	public Message(String name, String protocolName, Message.Type type) {
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
 		doc = new Document();
 		doc.append("name", name);
 		doc.append("protocolName", protocolName);
@@ -58,8 +74,8 @@ public class Message {
 	}
 	
 	static public void validateStringType(String key,Document doc) throws InvalidMessage {
-		if(!doc.containsKey(key)) throw new InvalidMessage();
-		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
+		// checked without decoding, the value may never be asked for
+		if(!doc.isString(key)) throw new InvalidMessage();
 	}
 	
 	/**
@@ -73,7 +89,14 @@ public class Message {
 		validateStringValue("name",name,doc);
 		validateStringValue("protocolName",protocolName,doc);
 		validateStringValue("type",type.toString(),doc);
-		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+		if(doc.containsKey("timeoutId")) {
+			validateLongType("timeoutId",doc);
+			timeoutId=doc.getLong("timeoutId");
+		}
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
+		this.doc=doc;
 	}
 	
 	/**
@@ -83,7 +106,42 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Turn a received payload into an appropriate message object, using
+	 * whichever {@link pb.protocols.Codec} the payload was encoded with.
+	 * @param array
+	 * @param offset
+	 * @param length
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(byte[] array, int offset, int length) throws InvalidMessage {
+		return toMessage(MessageHeader.read(array,offset,length));
+	}
+	
+	/**
+	 * Decode the rest of a message whose header has been read.
+	 * @param header read from the received payload, which must still be valid
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(MessageHeader header) throws InvalidMessage {
+		if(header.length>0 && header.array[header.offset]==BinaryCodec.marker) {
+			return toMessage(BinaryCodec.decode(header));
+		}
+		return toMessage(new String(header.array,header.offset,header.length,StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Turn a document into an appropriate message object.
+	 * @param doc the message parameters
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(Document doc) throws InvalidMessage {
 		// the following test is somewhat repetitive, but it avoids having
 		// to test each message type, handling exceptions for those that are
 		// not the matching message type
@@ -99,6 +157,9 @@ public class Message {
 			case SessionStopReply.name: return new SessionStopReply(doc);
 			case EventRequest.name: return new EventRequest(doc);
 			case EventReply.name: return new EventReply(doc);
+			case EventBatch.name: return new EventBatch(doc);
+			case RpcRequest.name: return new RpcRequest(doc);
+			case RpcReply.name: return new RpcReply(doc);
 			// put more message cases here
 			
 			// if nothing matches, its invalid
@@ -119,7 +180,7 @@ public class Message {
 	 * @return
 	 */
 	public String getProtocolName() {
-		return doc.getString("protocolName");
+		return protocolName;
 	}
 	
 	/**
@@ -127,7 +188,7 @@ public class Message {
 	 * @return
 	 */
 	public String getName() {
-		return doc.getString("name");
+		return name;
 	}
 	
 	/**
@@ -135,7 +196,7 @@ public class Message {
 	 * @return
 	 */
 	public final Message.Type getType() {
-		return Message.Type.valueOf(doc.getString("type"));
+		return type;
 	}
 	
 	/**
@@ -143,6 +204,7 @@ public class Message {
 	 * @param id
 	 */
 	public final void setTimeoutId(long id) {
+		timeoutId=id;
 		doc.append("timeoutId", id);
 	}
 	
@@ -151,8 +213,6 @@ public class Message {
 	 * @return id
 	 */
 	public final long getTimeoutId() {
-		if(doc.containsKey("timeoutId"))
-			return doc.getLong("timeoutId");
-		else return 0;
+		return timeoutId;
 	}
 }
@@ -0,0 +1,258 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The parameters that every message has, which are all that is needed to
+ * route a received message to its protocol and to cancel the timeout of the
+ * request that a reply answers. A header is read straight from the received
+ * payload without decoding the rest of the message, so that a message that is
+ * going to be dropped is never fully decoded, see
+ * {@link pb.managers.endpoint.Endpoint}. The message itself is decoded with
+ * {@link pb.protocols.Message#toMessage(MessageHeader)} once it is wanted.
+ * <br/>
+ * A header only refers to the payload, so it is only valid while the payload
+ * is.
+ *
+ * @see {@link pb.protocols.Message}
+ * @author aaron
+ *
+ */
+public final class MessageHeader {
+
+	private static final byte[] nameKey = "name".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] protocolNameKey = "protocolName".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] typeKey = "type".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] timeoutIdKey = "timeoutId".getBytes(StandardCharsets.US_ASCII);
+
+	String name;
+	String protocolName;
+	Message.Type type;
+	long timeoutId=0;
+
+	final byte[] array;
+	final int offset;
+	final int length;
+
+	MessageHeader(byte[] array,int offset,int length) {
+		this.array=array;
+		this.offset=offset;
+		this.length=length;
+	}
+
+	/**
+	 * Read the header of a received payload, in whichever codec it was sent.
+	 * @param array
+	 * @param offset
+	 * @param length
+	 * @return the header
+	 * @throws InvalidMessage if the payload does not have a valid header
+	 */
+	public static MessageHeader read(byte[] array,int offset,int length) throws InvalidMessage {
+		MessageHeader header = new MessageHeader(array,offset,length);
+		if(length>0 && array[offset]==BinaryCodec.marker) {
+			BinaryCodec.readHeader(header);
+		} else {
+			new Scanner(header).scan();
+		}
+		if(header.name==null || header.protocolName==null || header.type==null)
+			throw new InvalidMessage();
+		return header;
+	}
+
+	/**
+	 * @return the message name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the protocol name
+	 */
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	/**
+	 * @return the message type
+	 */
+	public Message.Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the timeout id, or 0 if there is none
+	 */
+	public long getTimeoutId() {
+		return timeoutId;
+	}
+
+	/**
+	 * Walks the top level of a JSON payload, as UTF-8 bytes, picking out the
+	 * header parameters and skipping everything else. This works on the bytes
+	 * since all of the JSON syntax is ASCII, which never appears inside the
+	 * encoding of another character.
+	 */
+	private static class Scanner {
+		private final MessageHeader header;
+		private final byte[] array;
+		private int position;
+		private final int end;
+
+		Scanner(MessageHeader header) {
+			this.header=header;
+			array=header.array;
+			position=header.offset;
+			end=header.offset+header.length;
+		}
+
+		void scan() throws InvalidMessage {
+			skipWhitespace();
+			expect('{');
+			skipWhitespace();
+			if(peek()=='}') return;
+			while(true) {
+				skipWhitespace();
+				int keyStart=position+1;
+				skipString();
+				int keyEnd=position-1;
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				if(is(nameKey,keyStart,keyEnd)) {
+					header.name=stringValue();
+				} else if(is(protocolNameKey,keyStart,keyEnd)) {
+					header.protocolName=stringValue();
+				} else if(is(typeKey,keyStart,keyEnd)) {
+					String type=stringValue();
+					if(type==null) throw new InvalidMessage();
+					switch(type) {
+					case "Request": header.type=Message.Type.Request; break;
+					case "Reply": header.type=Message.Type.Reply; break;
+					default: throw new InvalidMessage();
+					}
+				} else if(is(timeoutIdKey,keyStart,keyEnd)) {
+					header.timeoutId=longValue();
+				} else {
+					skipValue();
+				}
+				skipWhitespace();
+				byte b = next();
+				if(b=='}') return;
+				if(b!=',') throw new InvalidMessage();
+			}
+		}
+
+		private boolean is(byte[] key,int start,int end) {
+			if(end-start!=key.length) return false;
+			for(int i=0;i<key.length;i++) {
+				if(array[start+i]!=key[i]) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return the string value, or null if the value is not a string
+		 */
+		private String stringValue() throws InvalidMessage {
+			if(peek()!='"') {
+				skipValue();
+				return null;
+			}
+			int start=position;
+			boolean escaped=skipString();
+			if(!escaped) {
+				return new String(array,start+1,position-start-2,StandardCharsets.UTF_8);
+			}
+			String json = new String(array,start,position-start,StandardCharsets.UTF_8);
+			try {
+				return JsonTokenizer.get().parseString(json,0,json.length());
+			} catch (JsonTokenizer.MalformedJson e) {
+				throw new InvalidMessage();
+			}
+		}
+
+		private long longValue() throws InvalidMessage {
+			boolean negative=false;
+			if(peek()=='-') {
+				negative=true;
+				position++;
+			}
+			long value=0;
+			int start=position;
+			while(position<end && array[position]>='0' && array[position]<='9') {
+				value=value*10+(array[position++]-'0');
+			}
+			// timeout ids are small whole numbers, anything else is not valid
+			if(position==start || position-start>18) throw new InvalidMessage();
+			if(position<end && (array[position]=='.' || array[position]=='e' || array[position]=='E'))
+				throw new InvalidMessage();
+			return negative?-value:value;
+		}
+
+		private void skipValue() throws InvalidMessage {
+			byte b = peek();
+			if(b=='"') {
+				skipString();
+			} else if(b=='{' || b=='[') {
+				int depth=0;
+				do {
+					b = peek();
+					if(b=='"') {
+						skipString();
+						continue;
+					}
+					position++;
+					if(b=='{' || b=='[') depth++;
+					else if(b=='}' || b==']') depth--;
+				} while(depth>0);
+			} else {
+				// number or literal
+				while(position<end) {
+					b = array[position];
+					if(b==',' || b=='}' || b==' ' || b=='\t' || b=='\n' || b=='\r') break;
+					position++;
+				}
+			}
+		}
+
+		/**
+		 * @return true if the string had escapes
+		 */
+		private boolean skipString() throws InvalidMessage {
+			expect('"');
+			boolean escaped=false;
+			while(true) {
+				byte b = next();
+				if(b=='"') return escaped;
+				if(b=='\\') {
+					escaped=true;
+					next();
+				}
+			}
+		}
+
+		private void skipWhitespace() {
+			while(position<end) {
+				byte b = array[position];
+				if(b!=' ' && b!='\t' && b!='\n' && b!='\r') return;
+				position++;
+			}
+		}
+
+		private void expect(char c) throws InvalidMessage {
+			if(next()!=c) throw new InvalidMessage();
+		}
+
+		private byte peek() throws InvalidMessage {
+			if(position>=end) throw new InvalidMessage();
+			return array[position];
+		}
+
+		private byte next() throws InvalidMessage {
+			if(position>=end) throw new InvalidMessage();
+			return array[position++];
+		}
+	}
+}
@@ -2,6 +2,7 @@ package pb.protocols;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Lane;
 
 /**
  * All protocols have an endpoint and a manager.
@@ -48,6 +49,14 @@ public class Protocol {
 		
 	}
 
+	/**
+	 * Send anything the protocol is holding back. Called before the session
+	 * stops and before the endpoint closes, while messages can still be sent.
+	 */
+	public void flush() {
+		
+	}
+
 	/**
 	 * Sometimes the static string reference is not reachable, so
 	 * this method provides access.
@@ -56,4 +65,14 @@ public class Protocol {
 	public String getProtocolName() {
 		return protocolName;
 	}
+	
+	/**
+	 * The lane the endpoint sends this protocol's messages on, unless it is
+	 * told otherwise when it starts handling the protocol.
+	 * @see {@link pb.managers.endpoint.Endpoint#handleProtocol(Protocol, Lane)}
+	 * @return the lane, interactive unless the protocol says otherwise
+	 */
+	public Lane getLane() {
+		return Lane.INTERACTIVE;
+	}
 }
@@ -0,0 +1,85 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Several events sent in one message, in the order they were emitted. The
+ * events are kept as a single list of alternating event names and data. The
+ * batch is answered like a single {@link pb.protocols.event.EventRequest},
+ * and the receiver handles its events one after another.
+ *
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @author aaron
+ *
+ */
+public class EventBatch extends Message {
+	static final public String name = "EventBatch";
+
+	/**
+	 * Initialiser when given the events explicitly.
+	 * @param events alternating event names and data
+	 * @param windowed true if the receiver may acknowledge cumulatively
+	 * @param unacknowledged true if the receiver must not acknowledge it
+	 */
+	public EventBatch(ArrayList<String> events, boolean windowed, boolean unacknowledged) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		doc.append("events", events);
+		if(windowed && !unacknowledged) doc.append("windowed", true);
+		if(unacknowledged) doc.append("unacknowledged", true);
+	}
+
+	public EventBatch(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		if(!(doc.get("events") instanceof ArrayList)) throw new InvalidMessage();
+		ArrayList<?> events = (ArrayList<?>) doc.get("events");
+		if(events.size()%2!=0) throw new InvalidMessage();
+		for(Object event : events) {
+			if(!(event instanceof String)) throw new InvalidMessage();
+		}
+		if(doc.containsKey("windowed") && !(doc.get("windowed") instanceof Boolean)) throw new InvalidMessage();
+		if(doc.containsKey("unacknowledged") && !(doc.get("unacknowledged") instanceof Boolean)) throw new InvalidMessage();
+		this.doc=doc;
+	}
+
+	/**
+	 * @return the number of events in the batch
+	 */
+	public int size() {
+		return ((ArrayList<?>) doc.get("events")).size()/2;
+	}
+
+	/**
+	 * @param i index of the event
+	 * @return the name of the event
+	 */
+	public String getEventName(int i) {
+		return (String) ((ArrayList<?>) doc.get("events")).get(2*i);
+	}
+
+	/**
+	 * @param i index of the event
+	 * @return the data of the event
+	 */
+	public String getEventData(int i) {
+		return (String) ((ArrayList<?>) doc.get("events")).get(2*i+1);
+	}
+
+	/**
+	 * @return true if the receiver may acknowledge the batch along with the
+	 * events around it
+	 */
+	public boolean isWindowed() {
+		return doc.containsKey("windowed") && doc.getBoolean("windowed");
+	}
+
+	/**
+	 * @return true if the sender does not want the batch acknowledged
+	 */
+	public boolean isUnacknowledged() {
+		return doc.containsKey("unacknowledged") && doc.getBoolean("unacknowledged");
+	}
+}
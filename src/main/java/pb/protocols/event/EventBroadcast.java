@@ -0,0 +1,97 @@
+package pb.protocols.event;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.EncodedMessage;
+
+/**
+ * An event sent to many endpoints at once, such as a board update sent to
+ * every peer listening to the board. Its request is built and encoded once,
+ * for each way that the endpoints send events, rather than once per endpoint
+ * as emitting it on each of them would, see
+ * {@link pb.protocols.EncodedMessage}.
+ *
+ * @see {@link pb.protocols.event.EventProtocol#sendEvent(EventBroadcast)}
+ * @see {@link pb.managers.Manager#broadcast(String, String, Collection)}
+ * @author aaron
+ *
+ */
+public class EventBroadcast {
+
+	private final String eventName;
+	private final String eventData;
+
+	/**
+	 * The request by whether it is windowed and whether it is unacknowledged,
+	 * once built.
+	 */
+	private final EncodedMessage[] requests = new EncodedMessage[4];
+
+	/**
+	 * @param eventName
+	 * @param eventData
+	 */
+	public EventBroadcast(String eventName, String eventData) {
+		this.eventName=eventName;
+		this.eventData=eventData;
+	}
+
+	/**
+	 * @return the name of the event
+	 */
+	public String getEventName() {
+		return eventName;
+	}
+
+	/**
+	 * @return the data of the event
+	 */
+	public String getEventData() {
+		return eventData;
+	}
+
+	/**
+	 * @param windowed
+	 * @param unacknowledged
+	 * @return the request for the event, sent the given way
+	 */
+	synchronized EncodedMessage getRequest(boolean windowed, boolean unacknowledged) {
+		int i = (windowed?2:0)+(unacknowledged?1:0);
+		if(requests[i]==null) {
+			requests[i] = new EncodedMessage(new EventRequest(eventName,eventData,windowed,unacknowledged));
+		}
+		return requests[i];
+	}
+
+	/**
+	 * Send the event to each of the endpoints that is included, over its
+	 * event protocol. An endpoint that the event can not be sent to does not
+	 * stop it being sent to the rest.
+	 * @param recipients
+	 * @param include which of the recipients to send to, null for all of them,
+	 * e.g. to leave out the endpoint that the event came from
+	 * @return the endpoints the event could not be sent to, and why
+	 */
+	public Map<Endpoint,String> sendTo(Collection<? extends Endpoint> recipients,
+			Predicate<? super Endpoint> include) {
+		Map<Endpoint,String> failed = new LinkedHashMap<>();
+		for(Endpoint endpoint : recipients) {
+			if(include!=null && !include.test(endpoint)) continue;
+			EventProtocol protocol = (EventProtocol)endpoint.getProtocol(EventProtocol.protocolName);
+			if(protocol==null) {
+				failed.put(endpoint,"the event protocol is not running");
+				continue;
+			}
+			try {
+				if(!protocol.sendEvent(this)) failed.put(endpoint,"the event was not sent");
+			} catch (RuntimeException e) {
+				failed.put(endpoint,e.toString());
+			}
+		}
+		return failed;
+	}
+}
@@ -0,0 +1,23 @@
+package pb.protocols.event;
+
+/**
+ * How the events with a given name are delivered to the other endpoint.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#on(String, IEventCallback, EventDelivery)}
+ * @author aaron
+ *
+ */
+public enum EventDelivery {
+	/**
+	 * The other endpoint acknowledges the event, and the endpoint times out
+	 * if it does not, as set by
+	 * {@link pb.managers.endpoint.EndpointConfig#setEventAcks(pb.managers.endpoint.EndpointConfig.EventAcks)}.
+	 */
+	ACKNOWLEDGED,
+	/**
+	 * The event is sent and forgotten: it is not acknowledged and has no
+	 * timeout, so it is lost if the connection fails while it is on its way.
+	 * For frequent events where only the latest matters.
+	 */
+	UNACKNOWLEDGED
+}
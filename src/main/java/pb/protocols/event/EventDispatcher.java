@@ -0,0 +1,217 @@
+package pb.protocols.event;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.SelectorLoop;
+
+/**
+ * A pool of worker threads, shared by every
+ * {@link pb.protocols.event.EventProtocol} in the process, that runs the
+ * callbacks for received events so that the endpoint can carry on reading
+ * while they run. Each endpoint gets a {@link Lane}: the events in a lane are
+ * run one at a time in the order they were received, while the lanes of
+ * different endpoints run on different workers at the same time.
+ * <br/>
+ * A lane holds a bounded number of events. When it is full the endpoint
+ * waits for room before going on, so a peer that sends events faster than
+ * they can be handled is slowed down to match rather than filling memory.
+ * An endpoint served by a {@link pb.managers.endpoint.SelectorLoop} must not
+ * hold up the loop, so it stops reading instead until the lane has room,
+ * see {@link pb.managers.endpoint.Endpoint#pauseReading()}.
+ *
+ * @see {@link pb.managers.endpoint.EndpointConfig#setEventDispatch(pb.managers.endpoint.EndpointConfig.EventDispatch)}
+ * @author aaron
+ *
+ */
+public class EventDispatcher {
+	private static Logger log = Logger.getLogger(EventDispatcher.class.getName());
+
+	/**
+	 * Most events a worker runs from one lane before giving the other lanes
+	 * a turn.
+	 */
+	private static final int batchSize = 64;
+
+	private static EventDispatcher dispatcher;
+
+	/**
+	 * @return the dispatcher for the process, started when first used
+	 */
+	public static synchronized EventDispatcher getInstance() {
+		if(dispatcher==null) dispatcher=new EventDispatcher(Runtime.getRuntime().availableProcessors());
+		return dispatcher;
+	}
+
+	private final ExecutorService workers;
+
+	private final AtomicLong dispatched = new AtomicLong(0);
+	private final AtomicLong waitNanos = new AtomicLong(0);
+	private final AtomicLong maxWaitNanos = new AtomicLong(0);
+	private final AtomicLong blocked = new AtomicLong(0);
+
+	private EventDispatcher(int threads) {
+		workers=Executors.newFixedThreadPool(threads,(runnable)->{
+			Thread thread = new Thread(runnable,"EventDispatcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @param capacity most events the lane holds before the endpoint waits
+	 * @param endpoint whose events the lane holds
+	 * @return a new lane
+	 */
+	public Lane newLane(int capacity,Endpoint endpoint) {
+		return new Lane(capacity,endpoint);
+	}
+
+	/**
+	 * @return the number of events that have been run
+	 */
+	public long getDispatched() {
+		return dispatched.get();
+	}
+
+	/**
+	 * @return the total time, in ns, that run events spent waiting in their lanes
+	 */
+	public long getWaitNanos() {
+		return waitNanos.get();
+	}
+
+	/**
+	 * @return the average time, in ns, that run events spent waiting in their lanes
+	 */
+	public long getAverageWaitNanos() {
+		long count = dispatched.get();
+		return count==0?0:waitNanos.get()/count;
+	}
+
+	/**
+	 * @return the longest time, in ns, that an event spent waiting in its lane
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * @return the number of times an endpoint had to wait, or stop reading,
+	 * for room in its lane
+	 */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	/**
+	 * An event waiting in a lane.
+	 */
+	private static final class Queued {
+		final Runnable task;
+		final long queuedAt;
+
+		Queued(Runnable task,long queuedAt) {
+			this.task=task;
+			this.queuedAt=queuedAt;
+		}
+	}
+
+	/**
+	 * The events of one endpoint, run in order.
+	 */
+	public final class Lane {
+		private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+		private final int capacity;
+		private final Endpoint endpoint;
+
+		/**
+		 * Whether the endpoint has stopped reading until the lane has room.
+		 */
+		private boolean paused=false;
+
+		/**
+		 * Whether a worker has been given the lane.
+		 */
+		private boolean running=false;
+
+		private Lane(int capacity,Endpoint endpoint) {
+			this.capacity=Math.max(capacity,1);
+			this.endpoint=endpoint;
+		}
+
+		/**
+		 * Queue an event to be run after the ones before it, waiting for room
+		 * if the lane is full. If interrupted while waiting the event is
+		 * queued anyway, so that no event is lost or reordered. On a selector
+		 * loop the event is queued anyway and the endpoint stops reading until
+		 * the lane has room, so the lane only goes over capacity by what has
+		 * already been read.
+		 * @param task
+		 */
+		public void submit(Runnable task) {
+			synchronized(this) {
+				if(queue.size()>=capacity && SelectorLoop.isLoopThread()) {
+					if(!paused) {
+						blocked.incrementAndGet();
+						paused=true;
+						endpoint.pauseReading();
+					}
+				} else if(queue.size()>=capacity) {
+					blocked.incrementAndGet();
+					try {
+						while(queue.size()>=capacity) wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				queue.add(new Queued(task,System.nanoTime()));
+				if(running) return;
+				running=true;
+			}
+			workers.execute(()->{drain();});
+		}
+
+		/**
+		 * @return the number of events waiting to run
+		 */
+		public synchronized int getQueued() {
+			return queue.size();
+		}
+
+		private void drain() {
+			for(int i=0;i<batchSize;i++) {
+				Queued queued;
+				boolean resume=false;
+				synchronized(this) {
+					queued=queue.poll();
+					if(queued==null) {
+						running=false;
+						return;
+					}
+					if(queue.size()==capacity-1) notifyAll();
+					if(paused && queue.size()<capacity) {
+						paused=false;
+						resume=true;
+					}
+				}
+				if(resume) endpoint.resumeReading();
+				long waited = System.nanoTime()-queued.queuedAt;
+				dispatched.incrementAndGet();
+				waitNanos.addAndGet(waited);
+				maxWaitNanos.accumulateAndGet(waited,Math::max);
+				try {
+					queued.task.run();
+				} catch (RuntimeException e) {
+					log.severe("event callback failed: "+e);
+				}
+			}
+			// let the other lanes have a turn
+			workers.execute(()->{drain();});
+		}
+	}
+}
@@ -1,17 +1,46 @@
 package pb.protocols.event;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.EndpointConfig;
+import pb.protocols.EncodedMessage;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Timeout;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
  * be a String. Complex data should be marshaled into a String.
+ * <br/>
+ * When the endpoint is configured with
+ * {@link pb.managers.endpoint.EndpointConfig.EventAcks#WINDOWED} events are
+ * sent marked as windowed, with the endpoint's timeout ids serving as their
+ * sequence numbers. The receiver answers with a single reply carrying the
+ * timeout id of the latest event it has received, once every
+ * {@link pb.managers.endpoint.EndpointConfig#getEventAckEvery()} events or
+ * after {@link pb.managers.endpoint.EndpointConfig#getEventAckDelay()} ms,
+ * which acknowledges that event and every one before it. Only one timeout is
+ * kept, for the oldest event that has not been acknowledged. A receiver that
+ * does not know about windowed events replies to each one, which
+ * acknowledges them just the same.
+ * <br/>
+ * Events whose names were chosen to be
+ * {@link pb.protocols.event.EventDelivery#UNACKNOWLEDGED} on the endpoint are
+ * sent without a timeout id and the receiver does not reply to them.
+ * <br/>
+ * When the endpoint is configured with an
+ * {@link pb.managers.endpoint.EndpointConfig#getEventLinger()} the emitted
+ * events are held for that long and sent together as an
+ * {@link pb.protocols.event.EventBatch}, or sooner if the batch fills up. A
+ * batch is acknowledged as a whole, and is only sent unacknowledged if all
+ * of its events are.
  * @author aaron
  *
  */
@@ -24,6 +53,81 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * Sends the events emitted on the endpoint.
+	 */
+	private final IWildcardCallback forwarder;
+	
+	/**
+	 * Runs the callbacks for received events, or null to run them on the
+	 * endpoint's thread.
+	 */
+	private final EventDispatcher.Lane lane;
+
+	/**
+	 * Whether sent events are windowed.
+	 */
+	private final boolean windowed;
+
+	/**
+	 * Timeout ids of the sent windowed events that have not been acknowledged,
+	 * oldest first, and the times in ms that they were sent, in a ring.
+	 */
+	private long[] unackedIds = new long[64];
+	private long[] unackedTimes = new long[64];
+	private int unackedHead=0;
+	private int unackedSize=0;
+
+	/**
+	 * Every sent event up to this timeout id has been acknowledged.
+	 */
+	private long acked=0;
+
+	/**
+	 * Checks whether the oldest unacknowledged event is overdue.
+	 */
+	private Timeout unackedTimer;
+
+	/**
+	 * Timeout id of the latest windowed event received, and the number
+	 * received since the last acknowledgement.
+	 */
+	private long received=0;
+	private int receivedUnacked=0;
+
+	/**
+	 * Sends the acknowledgement when no more events arrive in time.
+	 */
+	private Timeout ackTimer;
+	
+	/**
+	 * Time in ms that an emitted event waits to be batched, and the most
+	 * events in a batch.
+	 */
+	private final int linger;
+	private final int batchSize;
+	
+	/**
+	 * Events waiting to be sent, alternating names and data, whether they
+	 * are all unacknowledged, and the batches taken from them that are ready
+	 * to send, oldest first. Guarded by batching.
+	 */
+	private final Object batching = new Object();
+	private ArrayList<String> batch;
+	private boolean batchUnacknowledged;
+	private final ArrayDeque<Message> ready = new ArrayDeque<>();
+	
+	/**
+	 * Held while sending the ready batches, which keeps them in order without
+	 * holding batching or the endpoint while a send waits for room.
+	 */
+	private final Object sending = new Object();
+	
+	/**
+	 * Sends the batch when its time is up, guarded by batching.
+	 */
+	private Timeout lingerTimer;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -32,18 +136,27 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public EventProtocol(Endpoint endpoint, IEventProtocolHandler manager) {
 		super(endpoint, (Manager)manager);	
-		// Register an event to listen for all events ("*") emitted on this endpoint and
+		// Register an event to listen for all events emitted on this endpoint and
 		// send them to the remote end point; making sure thats events have
 		// only a String argument
-		endpoint.on("*", (args)->{
-			String eventName = (String) args[0];
-			if(args.length==2 && args[1] instanceof String) {
-				String eventData = (String) args[1];
+		forwarder = (eventName,args)->{
+			if(args.length==1 && args[0] instanceof String) {
+				String eventData = (String) args[0];
 				sendEvent(eventName,eventData);
 			} else {
 				log.warning("emitted event must have only a single String data argument: "+eventName);
 			}			
-		});
+		};
+		endpoint.onAll(forwarder);
+		EndpointConfig config = endpoint.getConfig();
+		if(config.getEventDispatch()==EndpointConfig.EventDispatch.POOLED) {
+			lane = EventDispatcher.getInstance().newLane(config.getEventQueueCapacity(),endpoint);
+		} else {
+			lane = null;
+		}
+		windowed = config.getEventAcks()==EndpointConfig.EventAcks.WINDOWED;
+		linger = config.getEventLinger();
+		batchSize = Math.max(config.getEventBatchSize(),1);
 	}
 	
 	/**
@@ -53,12 +166,119 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		boolean unacknowledged = endpoint.getDelivery(eventName)==EventDelivery.UNACKNOWLEDGED;
+		if(linger<=0) {
+			sendRequest(new EventRequest(eventName,eventData,windowed,unacknowledged));
+			return;
+		}
+		boolean full;
+		synchronized(batching) {
+			if(batch==null) {
+				batch=new ArrayList<>(2*batchSize);
+				batchUnacknowledged=true;
+			}
+			batch.add(eventName);
+			batch.add(eventData);
+			batchUnacknowledged&=unacknowledged;
+			full = batch.size()>=2*batchSize;
+			if(full) {
+				takeBatch();
+			} else if(lingerTimer==null) {
+				lingerTimer=Utils.getInstance().setTimeout(()->{
+					flush();
+				},linger);
+			}
+		}
+		if(full) sendReady();
+	}
+	
+	/**
+	 * Send the events waiting to be batched straight away.
+	 */
+	@Override
+	public void flush() {
+		synchronized(batching) {
+			takeBatch();
+		}
+		sendReady();
+	}
+	
+	/**
+	 * Send an event that is being sent to other endpoints as well, without
+	 * building and encoding its request again. Events are still batched
+	 * along with the others sent on the endpoint when it lingers.
+	 * @param broadcast
+	 * @return true if the event was sent, or batched to be sent
+	 */
+	public boolean sendEvent(EventBroadcast broadcast) {
+		if(stopped)return false;
+		if(linger>0) {
+			sendEvent(broadcast.getEventName(),broadcast.getEventData());
+			return true;
+		}
+		boolean unacknowledged = endpoint.getDelivery(broadcast.getEventName())==EventDelivery.UNACKNOWLEDGED;
+		EncodedMessage request = broadcast.getRequest(windowed,unacknowledged);
+		if(unacknowledged) return endpoint.send(request);
+		if(windowed) {
+			long id = endpoint.sendWithId(request);
+			if(id!=0) sent(id,System.currentTimeMillis());
+			return id!=0;
+		}
+		return endpoint.sendWithTimeout(request, ()->{
+			if(!stopped) manager.endpointTimedOut(endpoint, this);
+		}, eventTimeout);
+	}
+	
+	/**
+	 * Make the events waiting to be batched ready to send, called holding
+	 * batching.
+	 */
+	private void takeBatch() {
+		if(lingerTimer!=null) {
+			lingerTimer.cancel();
+			lingerTimer=null;
+		}
+		if(batch==null) return;
+		ArrayList<String> events = batch;
+		batch=null;
+		if(events.size()==2) {
+			ready.add(new EventRequest(events.get(0),events.get(1),windowed,batchUnacknowledged));
+		} else {
+			ready.add(new EventBatch(events,windowed,batchUnacknowledged));
+		}
+	}
+	
+	/**
+	 * Send the batches that are ready, in order.
+	 */
+	private void sendReady() {
+		synchronized(sending) {
+			while(true) {
+				Message msg;
+				synchronized(batching) {
+					msg = ready.poll();
+				}
+				if(msg==null) return;
+				sendRequest(msg);
+			}
+		}
 	}
 	
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		endpoint.offAll(forwarder);
+		synchronized(batching) {
+			// flushed before the endpoint stopped, anything left can not be sent
+			if(lingerTimer!=null) lingerTimer.cancel();
+			lingerTimer=null;
+			batch=null;
+			ready.clear();
+		}
+		synchronized(this) {
+			if(unackedTimer!=null) unackedTimer.cancel();
+			if(ackTimer!=null) ackTimer.cancel();
+		}
 	}
 
 	@Override
@@ -76,6 +296,15 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void sendRequest(Message msg) {
 		if(stopped)return;
+		if(isUnacknowledged(msg)) {
+			endpoint.send(msg);
+			return;
+		}
+		if(isWindowed(msg)) {
+			long id = endpoint.sendWithId(msg);
+			if(id!=0) sent(id,System.currentTimeMillis());
+			return;
+		}
 		endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
 		}, eventTimeout);
@@ -84,16 +313,52 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		if(windowed) acknowledged(msg.getTimeoutId());
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
-		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		if(isUnacknowledged(msg)) {
+			// nothing to acknowledge
+		} else if(isWindowed(msg)) {
+			receivedWindowed(msg.getTimeoutId());
+		} else {
+			endpoint.sendAndCancelTimeout(new EventReply(), msg);
+		}
+		if(lane!=null) {
+			lane.submit(()->{
+				emitReceived(msg);
+			});
+		} else {
+			emitReceived(msg);
+		}
+	}
+	
+	/**
+	 * Emit the events in a received request on the endpoint, in order.
+	 * @param msg an event request or batch
+	 */
+	private void emitReceived(Message msg) {
+		if(msg instanceof EventBatch) {
+			EventBatch eventBatch = (EventBatch)msg;
+			for(int i=0;i<eventBatch.size();i++) {
+				endpoint.localEmit(eventBatch.getEventName(i),eventBatch.getEventData(i));
+			}
+		} else {
+			EventRequest eventRequest = (EventRequest)msg;
+			endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());
+		}
+	}
+	
+	private static boolean isUnacknowledged(Message msg) {
+		if(msg instanceof EventBatch) return ((EventBatch)msg).isUnacknowledged();
+		return msg instanceof EventRequest && ((EventRequest)msg).isUnacknowledged();
+	}
+	
+	private static boolean isWindowed(Message msg) {
+		if(msg instanceof EventBatch) return ((EventBatch)msg).isWindowed();
+		return msg instanceof EventRequest && ((EventRequest)msg).isWindowed();
 	}
 
 	@Override
@@ -107,4 +372,111 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		return protocolName;
 	}
 
+	/**
+	 * @return the number of sent windowed events that have not been acknowledged
+	 */
+	public synchronized int getUnacked() {
+		return unackedSize;
+	}
+
+	/**
+	 * Remember a windowed event that was sent, until it is acknowledged.
+	 * @param id its timeout id
+	 * @param time it was sent in ms
+	 */
+	private synchronized void sent(long id,long time) {
+		// the acknowledgement may have beaten us here
+		if(id<=acked || stopped) return;
+		if(unackedSize==unackedIds.length) {
+			unackedIds=grow(unackedIds);
+			unackedTimes=grow(unackedTimes);
+			unackedHead=0;
+		}
+		int tail=(unackedHead+unackedSize)%unackedIds.length;
+		unackedIds[tail]=id;
+		unackedTimes[tail]=time;
+		unackedSize++;
+		if(unackedTimer==null) {
+			unackedTimer=Utils.getInstance().setTimeout(()->{checkUnacked();},eventTimeout);
+		}
+	}
+
+	/**
+	 * @param ring a full ring
+	 * @return a ring twice the size, with the oldest first
+	 */
+	private long[] grow(long[] ring) {
+		long[] grown = new long[ring.length*2];
+		System.arraycopy(ring,unackedHead,grown,0,ring.length-unackedHead);
+		System.arraycopy(ring,0,grown,ring.length-unackedHead,unackedHead);
+		return grown;
+	}
+
+	/**
+	 * Every sent event up to and including this one has been received.
+	 * @param id timeout id of the latest event received by the other endpoint
+	 */
+	private synchronized void acknowledged(long id) {
+		if(id<=acked) return;
+		acked=id;
+		while(unackedSize>0 && unackedIds[unackedHead]<=id) {
+			unackedHead=(unackedHead+1)%unackedIds.length;
+			unackedSize--;
+		}
+	}
+
+	/**
+	 * Time out the endpoint if the oldest unacknowledged event is overdue,
+	 * otherwise check again when it will be.
+	 */
+	private void checkUnacked() {
+		synchronized(this) {
+			unackedTimer=null;
+			if(stopped || unackedSize==0) return;
+			long overdue = unackedTimes[unackedHead]+eventTimeout-System.currentTimeMillis();
+			if(overdue>0) {
+				unackedTimer=Utils.getInstance().setTimeout(()->{checkUnacked();},overdue);
+				return;
+			}
+		}
+		manager.endpointTimedOut(endpoint, this);
+	}
+
+	/**
+	 * Acknowledge a received windowed event, straight away if enough have
+	 * been received since the last acknowledgement, otherwise soon.
+	 * @param id timeout id of the event
+	 */
+	private void receivedWindowed(long id) {
+		EndpointConfig config = endpoint.getConfig();
+		synchronized(this) {
+			received=id;
+			receivedUnacked++;
+			if(receivedUnacked<config.getEventAckEvery()) {
+				if(ackTimer==null) {
+					ackTimer=Utils.getInstance().setTimeout(()->{sendAck();},config.getEventAckDelay());
+				}
+				return;
+			}
+		}
+		sendAck();
+	}
+
+	/**
+	 * Acknowledge every windowed event received so far.
+	 */
+	private void sendAck() {
+		EventReply reply = new EventReply();
+		synchronized(this) {
+			if(ackTimer!=null) {
+				ackTimer.cancel();
+				ackTimer=null;
+			}
+			if(receivedUnacked==0 || stopped) return;
+			receivedUnacked=0;
+			reply.setTimeoutId(received);
+		}
+		endpoint.send(reply);
+	}
+
 }
@@ -13,10 +13,36 @@ public class EventRequest extends Message {
 		doc.append("eventData", eventData);
 	}
 
+	/**
+	 * Initialiser for an event that is acknowledged along with the events
+	 * around it rather than on its own.
+	 * @param eventName
+	 * @param eventData
+	 * @param windowed true if the receiver may acknowledge cumulatively
+	 */
+	public EventRequest(String eventName, String eventData, boolean windowed) {
+		this(eventName,eventData);
+		if(windowed) doc.append("windowed", true);
+	}
+
+	/**
+	 * Initialiser for an event that may not be acknowledged at all.
+	 * @param eventName
+	 * @param eventData
+	 * @param windowed true if the receiver may acknowledge cumulatively
+	 * @param unacknowledged true if the receiver must not acknowledge it
+	 */
+	public EventRequest(String eventName, String eventData, boolean windowed, boolean unacknowledged) {
+		this(eventName,eventData,windowed && !unacknowledged);
+		if(unacknowledged) doc.append("unacknowledged", true);
+	}
+
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
 		Message.validateStringType("eventName", doc);
 		Message.validateStringType("eventData", doc);
+		if(doc.containsKey("windowed") && !(doc.get("windowed") instanceof Boolean)) throw new InvalidMessage();
+		if(doc.containsKey("unacknowledged") && !(doc.get("unacknowledged") instanceof Boolean)) throw new InvalidMessage();
 		this.doc=doc;
 	}
 	
@@ -27,4 +53,21 @@ public class EventRequest extends Message {
 	public String getEventData() {
 		return doc.getString("eventData");
 	}
+
+	/**
+	 * @return true if the receiver may acknowledge the event along with the
+	 * events around it, by replying with the timeout id of the latest event
+	 * it has received
+	 */
+	public boolean isWindowed() {
+		return doc.containsKey("windowed") && doc.getBoolean("windowed");
+	}
+
+	/**
+	 * @return true if the sender does not want the event acknowledged and
+	 * is not waiting for it to be
+	 */
+	public boolean isUnacknowledged() {
+		return doc.containsKey("unacknowledged") && doc.getBoolean("unacknowledged");
+	}
 }
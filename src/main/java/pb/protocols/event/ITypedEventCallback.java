@@ -0,0 +1,10 @@
+package pb.protocols.event;
+
+@FunctionalInterface
+public interface ITypedEventCallback<T> {
+	/**
+	 * Handle an event emitted with a single payload
+	 * @param payload
+	 */
+	public void callback(T payload);
+}
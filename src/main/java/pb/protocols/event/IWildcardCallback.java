@@ -0,0 +1,12 @@
+package pb.protocols.event;
+
+@FunctionalInterface
+public interface IWildcardCallback {
+	/**
+	 * Handle any event, the arguments are those that were emitted and must
+	 * not be changed since other callbacks receive the same array
+	 * @param eventName
+	 * @param args
+	 */
+	public void callback(String eventName, Object... args);
+}
@@ -1,31 +1,42 @@
 package pb.protocols.keepalive;
 
 import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Lane;
+import pb.protocols.EncodedMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
-import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
  * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
- * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
- * it will assume the server is dead
- * and signal its manager using
+ * KeepAlive request to the server every {@link #keepAliveRequestInterval} ms.
+ * The server must send a KeepAlive response to the client upon receiving the
+ * request. If the client does not receive a response for {@link #keepAliveTimeout}
+ * ms it will assume the server is dead and signal its manager using
  * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
- * the client is dead and signal its manager. Upon initialisation, the client
- * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
- * when a timeout occurs.
+ * not receive a KeepAlive request at least every {@link #keepAliveTimeout} ms,
+ * it will assume the client is dead and signal its manager. Upon initialisation,
+ * the client should send the KeepAlive request immediately, whereas the server
+ * will wait up to {@link #keepAliveTimeout} ms before it assumes the client is
+ * dead. The protocol stops when a timeout occurs.
+ * <br/>
+ * Any traffic received counts as a sign of life, not just KeepAlive
+ * messages, and the client does not send a request while it has both sent
+ * and received traffic within the last {@link #keepAliveRequestInterval} ms,
+ * since the server only sees what is sent and the client only sees what is
+ * received. So a connection that is busy both ways
+ * does not carry keep alives at all, see
+ * {@link #getSuppressedRequests()}.
+ * <br/>
+ * The timing is done by the {@link pb.protocols.keepalive.KeepAliveSweeper}
+ * that is shared by all of the protocols, which calls {@link #sweep(long)}
+ * when the protocol needs attention.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -46,6 +57,13 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	public static final String protocolName="KeepAliveProtocol";
 	
+	/**
+	 * The request and reply never change, so they are encoded once for every
+	 * protocol in the process and each endpoint is handed the same frame.
+	 */
+	private static final EncodedMessage request = new EncodedMessage(new KeepAliveRequest());
+	private static final EncodedMessage reply = new EncodedMessage(new KeepAliveReply());
+	
 	/**
 	 * Default keep alive request interval
 	 */
@@ -76,9 +94,24 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	private volatile boolean stopped=false;
 	
 	/**
-	 * Whether we should timeout or not.
+	 * Requests not sent because there was traffic, over all protocols.
+	 */
+	private static final AtomicLong totalSuppressed = new AtomicLong();
+	
+	/**
+	 * Requests not sent because there was traffic.
+	 */
+	private volatile long suppressed=0;
+	
+	/**
+	 * Whether this end is the client, which sends the requests.
+	 */
+	private volatile boolean client=false;
+	
+	/**
+	 * Time that the next request should be sent, only used by the sweeper.
 	 */
-	private volatile boolean timeout=false; 
+	private long timeRequestDue;
 	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
@@ -97,6 +130,15 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 		return protocolName;
 	}
 
+	/**
+	 * Keep alives must not wait behind other traffic, or a busy connection
+	 * would time out.
+	 */
+	@Override
+	public Lane getLane() {
+		return Lane.CONTROL;
+	}
+
 	/**
 	 * Just set a flag to avoid any further timeout callbacks.
 	 */
@@ -111,80 +153,79 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
+	 * just wait for {@link #keepAliveTimeout} ms and if no (new) request has been seen
 	 * then timeout. Keep doing this until cancelled.
 	 */
 	public void startAsServer() {
 		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
-	}
-	
-	/**
-	 * callback to check for client timeout
-	 */
-	public void checkClientTimeout() {
-		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
-			// timeout :-(
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
-		}
+		KeepAliveSweeper.getInstance().add(this,timeRequestSeen+keepAliveTimeout+1);
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
 	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * {@link #keepAliveTimeout} ms.
+	 * Keep doing this every {@link #keepAliveRequestInterval} ms until cancelled.
 	 */
 	public void startAsClient() {
+		client=true;
 		// assume we saw a reply already
 		timeReplySeen = Instant.now().toEpochMilli();
 		// send a request straight away
-		sendAnotherRequest();	
+		endpoint.send(request);
+		timeRequestDue = timeReplySeen+keepAliveRequestInterval;
+		KeepAliveSweeper.getInstance().add(this,timeRequestDue);
 	}
 	
 	/**
-	 * callback to send new request
+	 * Called by the sweeper when this protocol needs attention. The server
+	 * checks that the client is still sending requests. The client checks
+	 * that the server is still replying and sends another request when one
+	 * is due.
+	 * @param now the time of the sweep
+	 * @return the time this protocol next needs attention, or 0 if it has
+	 * stopped
 	 */
-	public void sendAnotherRequest() {
-		if(stopped)return;
-		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
-			sendAnotherRequest();
-		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
-	}
-	
-	/**
-	 * callback to check for server timeout
-	 */
-	public void checkServerTimeout(long timeSent) {
-		if(stopped)return;
-		if(timeout) {
+	long sweep(long now) {
+		if(stopped) return 0;
+		long timeSeen = Math.max(client?timeReplySeen:timeRequestSeen,endpoint.getLastReceived());
+		if(now-timeSeen > keepAliveTimeout) {
+			// timeout :-(
 			manager.endpointTimedOut(endpoint,this);
 			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
+			return 0;
 		}
+		if(!client) return timeSeen+keepAliveTimeout+1;
+		if(now>=timeRequestDue) {
+			if(now-endpoint.getLastSent() < keepAliveRequestInterval
+					&& now-timeSeen < keepAliveRequestInterval) {
+				// busy both ways, each side has heard from the other recently
+				suppressed++;
+				totalSuppressed.incrementAndGet();
+			} else {
+				endpoint.send(request);
+			}
+			timeRequestDue = now+keepAliveRequestInterval;
+		}
+		return Math.min(timeRequestDue,timeSeen+keepAliveTimeout+1);
 	}
 
+	/**
+	 * @return the number of requests this protocol did not send because
+	 * traffic had been sent and received recently enough
+	 */
+	public long getSuppressed() {
+		return suppressed;
+	}
+	
+	/**
+	 * @return the number of requests not sent because traffic had been
+	 * sent and received recently enough, over all keep alive protocols in the process
+	 */
+	public static long getSuppressedRequests() {
+		return totalSuppressed.get();
+	}
+	
 	/**
 	 * Send a keep alive request.
 	 * @param msg
@@ -215,7 +256,7 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
 		timeRequestSeen = Instant.now().toEpochMilli();
-		sendReply(new KeepAliveReply());
+		endpoint.send(reply);
 	}
 
 	/**
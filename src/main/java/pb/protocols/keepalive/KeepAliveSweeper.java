@@ -0,0 +1,114 @@
+package pb.protocols.keepalive;
+
+import java.util.ArrayList;
+
+import pb.utils.Utils;
+
+/**
+ * Does the timed work of every {@link pb.protocols.keepalive.KeepAliveProtocol}
+ * in the process, so that a protocol does not need timeouts of its own. The
+ * protocols are kept in a ring of buckets, one per {@link #sweepInterval}, by
+ * the time that they next need attention. A single timeout sweeps the buckets
+ * that have come due, sending keep alive requests and timing out dead peers
+ * in one batch.
+ * <br/>
+ * Seeing traffic only updates a time in the protocol, it does not move the
+ * protocol to another bucket. When the protocol's bucket comes due it works
+ * out when it next needs attention from the times it has seen, and goes into
+ * that bucket.
+ *
+ * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+ * @author aaron
+ *
+ */
+class KeepAliveSweeper {
+
+	/**
+	 * Time between sweeps in ms, which is also the precision of keep alive
+	 * timeouts.
+	 */
+	static final long sweepInterval = 1000;
+
+	/**
+	 * Number of buckets, covering longer than any keep alive interval.
+	 * Protocols due further ahead than this wait in the last bucket and are
+	 * looked at again when it comes due.
+	 */
+	private static final int ringSize = 64;
+
+	private static KeepAliveSweeper sweeper;
+
+	static synchronized KeepAliveSweeper getInstance() {
+		if(sweeper==null) sweeper=new KeepAliveSweeper();
+		return sweeper;
+	}
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private final ArrayList<KeepAliveProtocol>[] buckets = new ArrayList[ringSize];
+
+	/**
+	 * Number of protocols in the ring.
+	 */
+	private int size=0;
+
+	/**
+	 * The last bucket that was swept, as a count of intervals since the epoch.
+	 */
+	private long swept;
+
+	/**
+	 * Whether a sweep is scheduled.
+	 */
+	private boolean scheduled=false;
+
+	private KeepAliveSweeper() {
+		for(int i=0;i<ringSize;i++) buckets[i]=new ArrayList<>();
+		swept=System.currentTimeMillis()/sweepInterval;
+	}
+
+	/**
+	 * Add a protocol to the ring.
+	 * @param protocol
+	 * @param due time in ms that the protocol next needs attention
+	 */
+	synchronized void add(KeepAliveProtocol protocol,long due) {
+		long slot = Math.min(Math.max(due/sweepInterval,swept+1),swept+ringSize);
+		buckets[(int)(slot%ringSize)].add(protocol);
+		size++;
+		if(!scheduled) {
+			scheduled=true;
+			Utils.getInstance().setTimeout(()->{sweep();},sweepInterval);
+		}
+	}
+
+	/**
+	 * Give every protocol whose bucket has come due its turn, then put it back
+	 * in the ring by when it next needs attention.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		ArrayList<KeepAliveProtocol> due = new ArrayList<>();
+		synchronized(this) {
+			long slot = now/sweepInterval;
+			// catch up on every bucket since the last sweep, but only go round once
+			for(long s=Math.max(swept+1,slot-ringSize+1);s<=slot;s++) {
+				ArrayList<KeepAliveProtocol> bucket = buckets[(int)(s%ringSize)];
+				due.addAll(bucket);
+				size-=bucket.size();
+				bucket.clear();
+			}
+			swept=slot;
+		}
+		for(KeepAliveProtocol protocol : due) {
+			long next = protocol.sweep(now);
+			if(next>0) add(protocol,next);
+		}
+		synchronized(this) {
+			if(size>0) {
+				Utils.getInstance().setTimeout(()->{sweep();},sweepInterval);
+			} else {
+				scheduled=false;
+			}
+		}
+	}
+}
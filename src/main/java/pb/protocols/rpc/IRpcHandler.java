@@ -0,0 +1,16 @@
+package pb.protocols.rpc;
+
+import java.util.concurrent.CompletableFuture;
+
+@FunctionalInterface
+public interface IRpcHandler {
+	/**
+	 * Handle a call. The reply is sent when the returned future completes,
+	 * so a handler that needs time should return straight away and complete
+	 * the future later, rather than hold up the endpoint. Completing the
+	 * future exceptionally, or throwing, sends the caller an error.
+	 * @param data the data sent with the call
+	 * @return the result to send back
+	 */
+	public CompletableFuture<String> handle(String data);
+}
@@ -0,0 +1,6 @@
+package pb.protocols.rpc;
+
+public interface IRpcProtocolHandler {
+	// nothing that this protocol needs to signal in the manager, calls
+	// report their own failures through their futures
+}
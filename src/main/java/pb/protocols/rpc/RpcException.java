@@ -0,0 +1,17 @@
+package pb.protocols.rpc;
+
+/**
+ * A call did not return a result, the message says why. Calls complete
+ * their futures exceptionally with this exception.
+ *
+ * @see {@link pb.protocols.rpc.RpcProtocol#call(String, String)}
+ * @author aaron
+ *
+ */
+@SuppressWarnings("serial")
+public class RpcException extends Exception {
+
+	public RpcException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,205 @@
+package pb.protocols.rpc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import pb.managers.Manager;
+import pb.managers.endpoint.CorrelationTable;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.IRequestReplyProtocol;
+import pb.protocols.Message;
+import pb.protocols.Protocol;
+
+/**
+ * A protocol for calling named methods on the other endpoint and getting
+ * their results back, where events would need a pair of events and some way
+ * of telling which answer goes with which question. Each call is sent with a
+ * timeout id of its own, which the reply carries back, so any number of calls
+ * can be outstanding on the one endpoint and their replies can come back in
+ * any order.
+ * <br/>
+ * The methods an endpoint answers are registered with
+ * {@link #handle(String, IRpcHandler)}, e.g. when the session starts:
+ * <pre>
+ * {@code
+ * RpcProtocol rpc = (RpcProtocol) endpoint.getProtocol(RpcProtocol.protocolName);
+ * rpc.handle("getBoardData", (data)->{
+ *     return CompletableFuture.completedFuture(boardData(data));
+ * });
+ * rpc.call("getBoardData", boardName).thenAccept((data)->{ ... });
+ * }
+ * </pre>
+ * A call that is not answered within its deadline fails with a
+ * {@link pb.protocols.rpc.RpcTimeout}, without affecting the endpoint or the
+ * other calls. Results are completed on the endpoint's thread, so anything
+ * slow should be done with the async variants of the future's methods.
+ *
+ * @see {@link pb.protocols.rpc.IRpcHandler}
+ * @author aaron
+ *
+ */
+public class RpcProtocol extends Protocol implements IRequestReplyProtocol {
+	private static Logger log = Logger.getLogger(RpcProtocol.class.getName());
+
+	public static final String protocolName = "RpcProtocol";
+
+	/**
+	 * Deadline in ms for calls that do not give one.
+	 */
+	public int callTimeout = 20000;
+
+	public volatile boolean stopped=false;
+
+	/**
+	 * Methods this endpoint answers.
+	 */
+	private final ConcurrentHashMap<String,IRpcHandler> handlers = new ConcurrentHashMap<>();
+
+	/**
+	 * Calls waiting for their replies, with the futures to complete.
+	 */
+	private final CorrelationTable calls = new CorrelationTable();
+
+	/**
+	 * Initialise the protocol with an endpoint and a manager.
+	 * @param endpoint
+	 * @param manager
+	 */
+	public RpcProtocol(Endpoint endpoint, IRpcProtocolHandler manager) {
+		super(endpoint, (Manager)manager);
+	}
+
+	/**
+	 * Answer calls of a method with a handler, replacing any handler that
+	 * the method had.
+	 * @param method
+	 * @param handler
+	 * @return this protocol for chaining
+	 */
+	public RpcProtocol handle(String method, IRpcHandler handler) {
+		handlers.put(method,handler);
+		return this;
+	}
+
+	/**
+	 * Call a method on the other endpoint, with the default deadline.
+	 * @param method
+	 * @param data
+	 * @return the result, or an {@link pb.protocols.rpc.RpcException} if
+	 * there is none
+	 */
+	public CompletableFuture<String> call(String method, String data) {
+		return call(method,data,callTimeout);
+	}
+
+	/**
+	 * Call a method on the other endpoint.
+	 * @param method
+	 * @param data
+	 * @param deadline ms to wait for the result
+	 * @return the result, or an {@link pb.protocols.rpc.RpcException} if
+	 * there is none
+	 */
+	public CompletableFuture<String> call(String method, String data, int deadline) {
+		CompletableFuture<String> future = new CompletableFuture<>();
+		if(stopped) {
+			future.completeExceptionally(new RpcException("protocol stopped"));
+			return future;
+		}
+		RpcRequest request = new RpcRequest(method,data);
+		long id = endpoint.nextTimeoutId();
+		calls.add(id,()->{
+			future.completeExceptionally(new RpcTimeout("no reply to "+method+" within "+deadline+"ms"));
+		},deadline,future);
+		request.setTimeoutId(id);
+		if(!endpoint.send(request) && calls.take(id)!=null) {
+			future.completeExceptionally(new RpcException("endpoint stopped"));
+		}
+		return future;
+	}
+
+	/**
+	 * @return the number of calls waiting for their results
+	 */
+	public int getPendingCalls() {
+		return calls.getPending();
+	}
+
+	@Override
+	public void stopProtocol() {
+		stopped=true;
+		for(Object future : calls.clear()) {
+			((CompletableFuture<?>)future).completeExceptionally(new RpcException("protocol stopped"));
+		}
+	}
+
+	@Override
+	public void startAsClient() {
+
+	}
+
+	@Override
+	public void startAsServer() {
+
+	}
+
+	@Override
+	public void sendRequest(Message msg) {
+		if(stopped)return;
+		endpoint.send(msg);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void receiveReply(Message msg) {
+		CompletableFuture<String> future = (CompletableFuture<String>) calls.take(msg.getTimeoutId());
+		// too late, or not a call of ours
+		if(future==null) return;
+		RpcReply reply = (RpcReply)msg;
+		if(reply.getError()!=null) {
+			future.completeExceptionally(new RpcException(reply.getError()));
+		} else {
+			future.complete(reply.getResult());
+		}
+	}
+
+	@Override
+	public void receiveRequest(Message msg) {
+		if(stopped)return;
+		RpcRequest request = (RpcRequest)msg;
+		IRpcHandler handler = handlers.get(request.getMethod());
+		if(handler==null) {
+			endpoint.sendAndCancelTimeout(new RpcReply(null,"no such method: "+request.getMethod()),msg);
+			return;
+		}
+		CompletableFuture<String> result;
+		try {
+			result = handler.handle(request.getData());
+		} catch (RuntimeException e) {
+			log.warning("call of "+request.getMethod()+" failed: "+e);
+			result = CompletableFuture.failedFuture(e);
+		}
+		result.whenComplete((value,e)->{
+			if(e!=null) {
+				Throwable cause = e instanceof CompletionException && e.getCause()!=null?e.getCause():e;
+				endpoint.sendAndCancelTimeout(new RpcReply(null,String.valueOf(cause.getMessage())),msg);
+			} else {
+				endpoint.sendAndCancelTimeout(new RpcReply(value==null?"":value,null),msg);
+			}
+		});
+	}
+
+	@Override
+	public void sendReply(Message msg) {
+		if(stopped)return;
+		endpoint.send(msg);
+	}
+
+	@Override
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+}
@@ -0,0 +1,54 @@
+package pb.protocols.rpc;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * The result of a call, or why there is none. Sent with the timeout id of
+ * the call it answers.
+ * @see {@link pb.protocols.rpc.RpcProtocol}
+ * @author aaron
+ *
+ */
+public class RpcReply extends Message {
+	static final public String name = "RpcReply";
+	
+	/**
+	 * Initialiser for a reply.
+	 * @param result the result of the call, or null if there was an error
+	 * @param error why the call failed, or null if it did not
+	 */
+	public RpcReply(String result, String error) {
+		super(name, RpcProtocol.protocolName, Message.Type.Reply);
+		if(error!=null) {
+			doc.append("error", error);
+		} else {
+			doc.append("result", result);
+		}
+	}
+
+	public RpcReply(Document doc) throws InvalidMessage {
+		super(name,RpcProtocol.protocolName,Message.Type.Reply,doc);
+		if(doc.containsKey("error")) {
+			Message.validateStringType("error", doc);
+		} else {
+			Message.validateStringType("result", doc);
+		}
+		this.doc=doc;
+	}
+	
+	/**
+	 * @return the result of the call, or null if it failed
+	 */
+	public String getResult() {
+		return doc.getString("result");
+	}
+	
+	/**
+	 * @return why the call failed, or null if it did not
+	 */
+	public String getError() {
+		return doc.getString("error");
+	}
+}
@@ -0,0 +1,36 @@
+package pb.protocols.rpc;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * A call of a named method, whose timeout id is the call's correlation id.
+ * @see {@link pb.protocols.rpc.RpcProtocol}
+ * @author aaron
+ *
+ */
+public class RpcRequest extends Message {
+	static final public String name = "RpcRequest";
+	
+	public RpcRequest(String method, String data) {
+		super(name, RpcProtocol.protocolName, Message.Type.Request);
+		doc.append("method", method);
+		doc.append("data", data);
+	}
+
+	public RpcRequest(Document doc) throws InvalidMessage {
+		super(name,RpcProtocol.protocolName,Message.Type.Request,doc);
+		Message.validateStringType("method", doc);
+		Message.validateStringType("data", doc);
+		this.doc=doc;
+	}
+	
+	public String getMethod() {
+		return doc.getString("method");
+	}
+	
+	public String getData() {
+		return doc.getString("data");
+	}
+}
@@ -0,0 +1,16 @@
+package pb.protocols.rpc;
+
+/**
+ * No reply to a call arrived before its deadline.
+ *
+ * @see {@link pb.protocols.rpc.RpcProtocol#call(String, String, int)}
+ * @author aaron
+ *
+ */
+@SuppressWarnings("serial")
+public class RpcTimeout extends RpcException {
+
+	public RpcTimeout(String message) {
+		super(message);
+	}
+}
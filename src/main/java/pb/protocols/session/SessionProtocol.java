@@ -1,9 +1,16 @@
 package pb.protocols.session;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Framing;
+import pb.managers.endpoint.Lane;
+import pb.protocols.Codec;
+import pb.protocols.EncodedMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
 import pb.utils.Utils;
@@ -18,6 +25,12 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * The start request and reply also agree on the {@link pb.protocols.Codec}
+ * used for the rest of the session. The client offers the codecs it can use
+ * and the server picks the first one that it can use too. A peer that does
+ * not offer or pick a codec keeps using JSON. They also agree on whether
+ * streams can be opened on the connection and whether it is compressed.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -43,6 +56,22 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private int sessionTimeout = 40000;
 	
+	/**
+	 * The only compression there is, deflate with a flush per frame.
+	 */
+	private static final String deflate = "deflate";
+	
+	/**
+	 * The stop request and reply never change, and the start request and
+	 * reply only change with the endpoint's config, so they are encoded once
+	 * for every protocol in the process and each endpoint only puts in its
+	 * own timeout id, see {@link pb.protocols.EncodedMessage}.
+	 */
+	private static final EncodedMessage stopRequest = new EncodedMessage(new SessionStopRequest());
+	private static final EncodedMessage stopReply = new EncodedMessage(new SessionStopReply());
+	private static final Map<String,EncodedMessage> startMessages = new ConcurrentHashMap<>();
+	private static final int maxStartMessages = 32;
+	
 	// Use of volatile is in case the thread that calls stopProtocol is different
 	// to the endpoint thread, although in this case it hardly needed.
 	
@@ -73,6 +102,14 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	public String getProtocolName() {
 		return protocolName;
 	}
+	
+	/**
+	 * Session messages do not wait behind other traffic.
+	 */
+	@Override
+	public Lane getLane() {
+		return Lane.CONTROL;
+	}
 
 	/**
 	 * If this protocol is stopped while it is still in the running
@@ -98,7 +135,15 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		Codec offered = endpoint.getConfig().getCodec();
+		String codecs = canUse(offered)?offered.codecName+","+Codec.JSON.codecName:null;
+		boolean compress = canCompress();
+		// the server may compress as soon as it has replied
+		if(compress) endpoint.acceptCompression();
+		String compression = compress?deflate:null;
+		long window = streamWindow();
+		String key = "request,"+codecs+","+window+","+compression;
+		sendRequest(startMessage(key,()->new SessionStartRequest(codecs,window,compression)));
 	}
 
 	/**
@@ -115,10 +160,13 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	}
 	
 	/**
-	 * Generic stop session call, for either client or server.
+	 * Generic stop session call, for either client or server. The request
+	 * is written after everything sent before it.
 	 */
 	public void stopSession() {
-		sendRequest(new SessionStopRequest());
+		endpoint.flushProtocols();
+		endpoint.barrier();
+		sendRequest(stopRequest);
 	}
 	
 	/**
@@ -134,6 +182,33 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 		},sessionTimeout);
 	}
 
+	/**
+	 * Send a request that has already been encoded, as for
+	 * {@link #sendRequest(Message)}.
+	 * @param encoded
+	 */
+	private void sendRequest(EncodedMessage encoded) {
+		endpoint.sendWithTimeout(encoded,()->{
+			// the message timed out
+			if(!stopped)
+			manager.endpointTimedOut(endpoint, this);
+		},sessionTimeout);
+	}
+	
+	/**
+	 * @param key the parameters of the message
+	 * @param message builds the message if it has not been encoded yet
+	 * @return the start request or reply with the given parameters
+	 */
+	private static EncodedMessage startMessage(String key,Supplier<Message> message) {
+		EncodedMessage encoded = startMessages.get(key);
+		if(encoded!=null) return encoded;
+		encoded = new EncodedMessage(message.get());
+		// there are only as many as there are configs, but just in case
+		if(startMessages.size()<maxStartMessages) startMessages.putIfAbsent(key,encoded);
+		return encoded;
+	}
+
 	/**
 	 * If the reply is a session start reply then tell the manager that
 	 * the session has started, otherwise if its a session stop reply then
@@ -150,6 +225,13 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			Codec codec = Codec.forName(((SessionStartReply)msg).getCodec());
+			if(codec!=null && canUse(codec)) endpoint.setCodec(codec);
+			long peerWindow = ((SessionStartReply)msg).getStreamWindow();
+			if(peerWindow>0 && streamWindow()>0) endpoint.allowStreams(peerWindow);
+			if(deflate.equals(((SessionStartReply)msg).getCompression()) && canCompress()) {
+				endpoint.startCompression();
+			}
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -178,7 +260,20 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			Codec codec = chooseCodec(((SessionStartRequest)msg).getCodecs());
+			long peerWindow = ((SessionStartRequest)msg).getStreamWindow();
+			long window = peerWindow>0?streamWindow():0;
+			if(window>0) endpoint.acceptStreams(peerWindow);
+			boolean compress = deflate.equals(((SessionStartRequest)msg).getCompression()) && canCompress();
+			if(compress) endpoint.acceptCompression();
+			// the reply is encoded before switching, the client is still using JSON,
+			// and compression only starts with what is sent after it
+			String codecName = codec==null?null:codec.codecName;
+			String compression = compress?deflate:null;
+			String key = "reply,"+codecName+","+window+","+compression;
+			endpoint.sendAndCancelTimeout(startMessage(key,()->new SessionStartReply(codecName,window,compression)),msg);
+			if(codec!=null) endpoint.setCodec(codec);
+			if(compress) endpoint.startCompression();
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
@@ -187,12 +282,58 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=false;
-			endpoint.sendAndCancelTimeout(new SessionStopReply(),msg);
+			endpoint.flushProtocols();
+			endpoint.barrier();
+			endpoint.sendAndCancelTimeout(stopReply,msg);
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
 		}
 		
 	}
 
+	/**
+	 * @param codec
+	 * @return true if the endpoint's config allows the codec to be used, binary
+	 * codecs also need a framing that can carry arbitrary bytes
+	 */
+	private boolean canUse(Codec codec) {
+		if(codec==Codec.JSON) return true;
+		return codec==endpoint.getConfig().getCodec()
+				&& endpoint.getFraming()==Framing.LENGTH_PREFIXED;
+	}
+	
+	/**
+	 * @return the window to give streams, or 0 if the endpoint can not use
+	 * streams, which can not be nested and need a framing that can carry
+	 * arbitrary bytes
+	 */
+	private long streamWindow() {
+		if(endpoint.isStream() || endpoint.getFraming()!=Framing.LENGTH_PREFIXED) return 0;
+		return endpoint.getConfig().getStreamWindow();
+	}
+	
+	/**
+	 * @return true if the endpoint's config allows compression and the
+	 * endpoint can use it, streams are compressed by their connection
+	 */
+	private boolean canCompress() {
+		return endpoint.getConfig().getCompression() && !endpoint.isStream()
+				&& endpoint.getFraming()==Framing.LENGTH_PREFIXED;
+	}
+	
+	/**
+	 * Pick the first of the offered codecs that can be used.
+	 * @param codecs comma separated codec names, may be null
+	 * @return the codec chosen, or null if the client did not offer any
+	 */
+	private Codec chooseCodec(String codecs) {
+		if(codecs==null) return null;
+		for(String codecName : codecs.split(",")) {
+			Codec codec = Codec.forName(codecName.trim());
+			if(codec!=null && canUse(codec)) return codec;
+		}
+		return null;
+	}
+	
 	/**
 	 * Just send a reply, nothing special to do.
 	 * @param msg
@@ -21,6 +21,41 @@ public class SessionStartReply extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
 	
+	/**
+	 * Initialiser that also says which of the offered codecs was chosen.
+	 * @param codec the codec name
+	 */
+	public SessionStartReply(String codec) {
+		this();
+		doc.append("codec", codec);
+	}
+	
+	/**
+	 * Initialiser that also says which codec was chosen and whether streams
+	 * are agreed to.
+	 * @param codec the codec name, may be null if none was chosen
+	 * @param streamWindow the bytes each stream may send to the sender
+	 * before it gives any back, 0 if streams are not agreed to
+	 */
+	public SessionStartReply(String codec, long streamWindow) {
+		this();
+		if(codec!=null) doc.append("codec", codec);
+		if(streamWindow>0) doc.append("streamWindow", streamWindow);
+	}
+	
+	/**
+	 * Initialiser that also says which codec was chosen and whether streams
+	 * and compression are agreed to.
+	 * @param codec the codec name, may be null if none was chosen
+	 * @param streamWindow the bytes each stream may send to the sender
+	 * before it gives any back, 0 if streams are not agreed to
+	 * @param compression the compression agreed to, may be null if none is
+	 */
+	public SessionStartReply(String codec, long streamWindow, String compression) {
+		this(codec,streamWindow);
+		if(compression!=null) doc.append("compression", compression);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -30,6 +65,33 @@ public class SessionStartReply extends Message {
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("codec")) Message.validateStringType("codec", doc);
+		if(doc.containsKey("streamWindow")) Message.validateLongType("streamWindow", doc);
+		if(doc.containsKey("compression")) Message.validateStringType("compression", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return the codec chosen, or null if none was, in which case
+	 * JSON continues to be used
+	 */
+	public String getCodec() {
+		return doc.getString("codec");
+	}
+	
+	/**
+	 * @return the bytes each stream may send to the sender before it gives
+	 * any back, or 0 if the sender does not agree to streams
+	 */
+	public long getStreamWindow() {
+		return doc.containsKey("streamWindow")?doc.getLong("streamWindow"):0;
+	}
+	
+	/**
+	 * @return the compression agreed to, or null if the sender does not
+	 * agree to any
+	 */
+	public String getCompression() {
+		return doc.getString("compression");
+	}
 }
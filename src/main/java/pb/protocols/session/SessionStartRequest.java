@@ -21,6 +21,42 @@ public class SessionStartRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser that also offers the codecs the sender can use, in order
+	 * of preference.
+	 * @param codecs comma separated codec names
+	 */
+	public SessionStartRequest(String codecs) {
+		this();
+		doc.append("codecs", codecs);
+	}
+	
+	/**
+	 * Initialiser that also offers the codecs and streams.
+	 * @param codecs comma separated codec names, may be null if only JSON
+	 * is offered
+	 * @param streamWindow the bytes each stream may send to the sender
+	 * before it gives any back, 0 if streams are not offered
+	 */
+	public SessionStartRequest(String codecs, long streamWindow) {
+		this();
+		if(codecs!=null) doc.append("codecs", codecs);
+		if(streamWindow>0) doc.append("streamWindow", streamWindow);
+	}
+	
+	/**
+	 * Initialiser that also offers the codecs, streams and compression.
+	 * @param codecs comma separated codec names, may be null if only JSON
+	 * is offered
+	 * @param streamWindow the bytes each stream may send to the sender
+	 * before it gives any back, 0 if streams are not offered
+	 * @param compression the compression offered, may be null if none is
+	 */
+	public SessionStartRequest(String codecs, long streamWindow, String compression) {
+		this(codecs,streamWindow);
+		if(compression!=null) doc.append("compression", compression);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -30,6 +66,33 @@ public class SessionStartRequest extends Message {
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("codecs")) Message.validateStringType("codecs", doc);
+		if(doc.containsKey("streamWindow")) Message.validateLongType("streamWindow", doc);
+		if(doc.containsKey("compression")) Message.validateStringType("compression", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return comma separated codec names offered by the sender, or null
+	 * if the sender does not know about codecs and so only uses JSON
+	 */
+	public String getCodecs() {
+		return doc.getString("codecs");
+	}
+	
+	/**
+	 * @return the bytes each stream may send to the sender before it gives
+	 * any back, or 0 if the sender does not offer streams
+	 */
+	public long getStreamWindow() {
+		return doc.containsKey("streamWindow")?doc.getLong("streamWindow"):0;
+	}
+	
+	/**
+	 * @return the compression offered by the sender, or null if the sender
+	 * does not offer any
+	 */
+	public String getCompression() {
+		return doc.getString("compression");
+	}
 }
@@ -0,0 +1,106 @@
+package pb.utils;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.protocols.event.IWildcardCallback;
+
+/**
+ * Microbenchmark main for wildcard dispatch in {@link pb.utils.Eventable}.
+ * Emits an event that only wildcard callbacks receive, first with the
+ * callbacks registered on "*" through
+ * {@link pb.utils.Eventable#on(String, IEventCallback)}, then with them
+ * registered through {@link pb.utils.Eventable#onAll(IWildcardCallback)},
+ * and prints the bytes allocated and the time taken per emit for each.
+ * Allocated bytes are those of the emitting thread, from
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ * <br/>
+ * Run with e.g. {@code java -cp target/classes:<deps> pb.utils.EmitBenchmark -emits 5000000}.
+ *
+ * @see {@link pb.protocols.event.IWildcardCallback}
+ * @author aaron
+ *
+ */
+public class EmitBenchmark {
+	private static int emits=5000000;
+	private static int listeners=2;
+
+	/**
+	 * Written by the callbacks so that they are not optimised away.
+	 */
+	private static volatile Object sink;
+
+	private static void help(Options options){
+		String header = "Wildcard emit microbenchmark\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.utils.EmitBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	public static void main( String[] args ) {
+		Options options = new Options();
+		options.addOption("emits",true,"emits measured for each way, an integer");
+		options.addOption("listeners",true,"wildcard callbacks registered, an integer");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		try{
+			if(cmd.hasOption("emits")) emits = Integer.parseInt(cmd.getOptionValue("emits"));
+			if(cmd.hasOption("listeners")) listeners = Integer.parseInt(cmd.getOptionValue("listeners"));
+		} catch (NumberFormatException e){
+			System.out.println("-emits and -listeners require integers");
+			help(options);
+		}
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("this JVM can not measure the bytes a thread allocates");
+			System.exit(-1);
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		Eventable star = new Eventable();
+		for(int i=0;i<listeners;i++) star.on("*",(eventArgs)->{sink=eventArgs[0];});
+		Eventable all = new Eventable();
+		IWildcardCallback callback = (eventName,eventArgs)->{sink=eventArgs[0];};
+		for(int i=0;i<listeners;i++) all.onAll(callback);
+
+		report("on(\"*\")",star,threads);
+		report("onAll",all,threads);
+	}
+
+	/**
+	 * Warm up, then measure emitting on an eventable and print the result.
+	 * @param name of the way the callbacks are registered
+	 * @param eventable
+	 * @param threads
+	 */
+	private static void report(String name,Eventable eventable,com.sun.management.ThreadMXBean threads) {
+		// built once, so that only what the emit allocates is measured
+		Object[] emitted = {"data"};
+		// let the emit path be compiled before it is measured
+		for(int i=0;i<emits;i++) eventable.emit("benchmark",emitted);
+		long thread = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for(int i=0;i<emits;i++) eventable.emit("benchmark",emitted);
+		long nanos = System.nanoTime()-start;
+		bytes = threads.getThreadAllocatedBytes(thread)-bytes;
+		System.out.println(String.format("%-8s %d listeners: %.1f B/emit, %.1f ns/emit",
+				name,listeners,(double)bytes/emits,(double)nanos/emits));
+	}
+}
@@ -0,0 +1,76 @@
+package pb.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An event name interned to a small integer id, with the type of the payload
+ * the event carries. There is only ever one key for a name, so keys can be
+ * held in constants and compared by reference, and
+ * {@link pb.utils.Eventable} finds the callbacks for a key by indexing an
+ * array with its id rather than hashing the name on every emit.
+ * <br/>
+ * The payload type is not checked: every key for a name is the same object,
+ * whatever type it was asked for with.
+ *
+ * @see {@link pb.utils.Eventable#emit(EventKey, Object)}
+ * @author aaron
+ *
+ * @param <T> the type of the payload
+ */
+public final class EventKey<T> {
+
+	private static final ConcurrentHashMap<String,EventKey<?>> keys = new ConcurrentHashMap<>();
+
+	private static final AtomicInteger nextId = new AtomicInteger(0);
+
+	private final String name;
+
+	private final int id;
+
+	private EventKey(String name,int id) {
+		this.name=name;
+		this.id=id;
+	}
+
+	/**
+	 * Get the key for an event name, registering it if it is new.
+	 * @param <T> the type of the payload
+	 * @param name event name
+	 * @return the key for the name
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> EventKey<T> of(String name) {
+		EventKey<?> key = keys.get(name);
+		if(key==null) key=keys.computeIfAbsent(name,(n)->{return new EventKey<>(n,nextId.getAndIncrement());});
+		return (EventKey<T>) key;
+	}
+
+	/**
+	 * Get the key for an event name without registering it.
+	 * @param name event name
+	 * @return the key, or null if no key has been made for the name
+	 */
+	static EventKey<?> find(String name) {
+		return keys.get(name);
+	}
+
+	/**
+	 * @return the event name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the id of the key, ids are handed out from 0 upwards
+	 */
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -1,34 +1,87 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
+import pb.protocols.event.ITypedEventCallback;
+import pb.protocols.event.IWildcardCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. Callbacks can be removed with
+ * {@link #off(String, IEventCallback)} or by cancelling the
+ * {@link pb.utils.Subscription} returned from
+ * {@link #subscribe(String, IEventCallback)}.
+ * <br/>
+ * Events are identified by {@link pb.utils.EventKey}, and the callbacks for
+ * all events are kept in a table indexed by the key's id. The table, and the
+ * callbacks in it, are never changed: adding or removing a callback replaces
+ * the table. So emitting takes no lock and any number of threads can emit at
+ * the same time, while a callback added or removed during an emit takes
+ * effect from the next emit.
+ * <br/>
+ * Events can be emitted with a single typed payload using
+ * {@link #emit(EventKey, Object)}, which needs no arguments array, or by name
+ * with {@link #emit(String, Object...)}, which looks up the key for the name.
+ * Both reach the same callbacks: an {@link pb.protocols.event.IEventCallback}
+ * receives a typed payload as {@code args[0]}, and an
+ * {@link pb.protocols.event.ITypedEventCallback} receives {@code args[0]} as
+ * its payload when there is one argument, null when there are none and the
+ * whole arguments array when there are more.
+ * <br/>
+ * Callbacks that want every event are best added with
+ * {@link #onAll(IWildcardCallback)}, which passes the event name alongside
+ * the emitted arguments. Callbacks added for the special event name "*"
+ * still work but the arguments have to be copied for them on every emit.
  * @author aaron
  *
  */
 public class Eventable extends Thread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
-	
+
+	private static final EventKey<Object> all = EventKey.of("*");
+
+	/**
+	 * The callbacks for one event, replaced rather than changed.
+	 */
+	private static final class Callbacks {
+		final IEventCallback[] untyped;
+		final ITypedEventCallback<?>[] typed;
+
+		Callbacks(IEventCallback[] untyped,ITypedEventCallback<?>[] typed) {
+			this.untyped=untyped;
+			this.typed=typed;
+		}
+
+		int size() {
+			return untyped.length+typed.length;
+		}
+	}
+
+	private static final IEventCallback[] noUntyped = new IEventCallback[0];
+	private static final ITypedEventCallback<?>[] noTyped = new ITypedEventCallback<?>[0];
+
+	/**
+	 * Event callbacks indexed by key id, replaced rather than changed
+	 */
+	private volatile Callbacks[] callbacks = new Callbacks[0];
+
+	/**
+	 * Callbacks for all events, replaced rather than changed
+	 */
+	private volatile IWildcardCallback[] wildcards = new IWildcardCallback[0];
+
 	/**
-	 * Event callbacks
+	 * Held while replacing the callbacks
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
-	
+	private final Object lock = new Object();
+
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
 	}
-	
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name, and to all callbacks registered for special
@@ -37,23 +90,19 @@ public class Eventable extends Thread {
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
-				callback.callback(newargs);
-			});
+		IWildcardCallback[] any = wildcards;
+		for(IWildcardCallback callback : any) {
+			callback.callback(eventName,args);
 			hit=true;
 		}
+		if(emitAll(eventName,args)) hit=true;
 		if(localEmit(eventName,args)) hit=true;
 		if(!hit)log.warning("no callbacks for event: "+eventName);
 		return hit;
 	}
-	
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name.
@@ -61,17 +110,120 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
+	public boolean localEmit(String eventName, Object... args) {
+		EventKey<?> key = EventKey.find(eventName);
+		if(key==null) return false;
+		Callbacks registered = lookup(key);
+		if(registered==null) return false;
+		for(IEventCallback callback : registered.untyped) {
+			callback.callback(args);
+		}
+		if(registered.typed.length>0) {
+			Object payload = args.length==1?args[0]:(args.length==0?null:args);
+			for(ITypedEventCallback<?> callback : registered.typed) {
+				typed(callback).callback(payload);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Send a payload to all of the callbacks registered for the event, and
+	 * to all callbacks for every event.
+	 * @param <T> the type of the payload
+	 * @param key the event
+	 * @param payload the payload
+	 * @return true if at least one callback received the event
+	 */
+	public <T> boolean emit(EventKey<T> key, T payload) {
 		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
-			hit=true;
+		IWildcardCallback[] any = wildcards;
+		if(any.length>0 || lookup(all)!=null) {
+			Object[] args = {payload};
+			for(IWildcardCallback callback : any) {
+				callback.callback(key.getName(),args);
+				hit=true;
+			}
+			if(emitAll(key.getName(),args)) hit=true;
 		}
+		if(localEmit(key,payload)) hit=true;
+		if(!hit)log.warning("no callbacks for event: "+key.getName());
 		return hit;
 	}
-	
+
+	/**
+	 * Send a payload to all of the callbacks registered for the event.
+	 * @param <T> the type of the payload
+	 * @param key the event
+	 * @param payload the payload
+	 * @return true if at least one callback received the event
+	 */
+	public <T> boolean localEmit(EventKey<T> key, T payload) {
+		Callbacks registered = lookup(key);
+		if(registered==null) return false;
+		for(ITypedEventCallback<?> callback : registered.typed) {
+			typed(callback).callback(payload);
+		}
+		if(registered.untyped.length>0) {
+			Object[] args = {payload};
+			for(IEventCallback callback : registered.untyped) {
+				callback.callback(args);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Send event args to the callbacks registered for special event "*",
+	 * with the event name in front of them.
+	 * @param eventName
+	 * @param args
+	 * @return true if at least one callback received the event
+	 */
+	private boolean emitAll(String eventName, Object[] args) {
+		Callbacks registered = lookup(all);
+		if(registered==null) return false;
+		Object[] newargs=new Object[args.length+1];
+		newargs[0]=eventName;
+		System.arraycopy(args,0,newargs,1,args.length);
+		for(IEventCallback callback : registered.untyped) {
+			callback.callback(newargs);
+		}
+		for(ITypedEventCallback<?> callback : registered.typed) {
+			typed(callback).callback(newargs);
+		}
+		return true;
+	}
+
+	private Callbacks lookup(EventKey<?> key) {
+		Callbacks[] table = callbacks;
+		return key.getId()<table.length?table[key.getId()]:null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ITypedEventCallback<Object> typed(ITypedEventCallback<?> callback) {
+		return (ITypedEventCallback<Object>) callback;
+	}
+
+	/**
+	 * Replace the callbacks for a key, called with the lock held.
+	 * @param key
+	 * @param updated the new callbacks, null or empty if there are none
+	 */
+	private void replace(EventKey<?> key, Callbacks updated) {
+		Callbacks[] table = callbacks;
+		int id = key.getId();
+		if(updated!=null && updated.size()==0) updated=null;
+		if(id>=table.length) {
+			if(updated==null) return;
+			table=Arrays.copyOf(table,id+1);
+		} else {
+			table=table.clone();
+		}
+		table[id]=updated;
+		callbacks=table;
+	}
+
 	/**
 	 * Add a new callback for an event. The special event name "*" is used
 	 * for callbacks that want to receive all events.
@@ -79,11 +231,180 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
+	public Eventable on(String eventName, IEventCallback callback) {
+		EventKey<?> key = EventKey.of(eventName);
+		synchronized(lock) {
+			Callbacks registered = lookup(key);
+			if(registered==null) {
+				replace(key,new Callbacks(new IEventCallback[] {callback},noTyped));
+			} else {
+				IEventCallback[] updated = Arrays.copyOf(registered.untyped,registered.untyped.length+1);
+				updated[registered.untyped.length]=callback;
+				replace(key,new Callbacks(updated,registered.typed));
+			}
 		}
-		callbacks.get(eventName).add(callback);
 		return this;
 	}
+
+	/**
+	 * Add a new callback for an event.
+	 * @param <T> the type of the payload
+	 * @param key the event
+	 * @param callback callback to handle event
+	 * @return this event handler for chaining
+	 */
+	public <T> Eventable on(EventKey<T> key, ITypedEventCallback<? super T> callback) {
+		synchronized(lock) {
+			Callbacks registered = lookup(key);
+			if(registered==null) {
+				replace(key,new Callbacks(noUntyped,new ITypedEventCallback<?>[] {callback}));
+			} else {
+				ITypedEventCallback<?>[] updated = Arrays.copyOf(registered.typed,registered.typed.length+1);
+				updated[registered.typed.length]=callback;
+				replace(key,new Callbacks(registered.untyped,updated));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Add a new callback for an event, as for {@link #on(String, IEventCallback)}.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return a subscription that can remove the callback
+	 */
+	public Subscription subscribe(String eventName, IEventCallback callback) {
+		on(eventName,callback);
+		return new Subscription(eventName,()->{return off(eventName,callback);});
+	}
+
+	/**
+	 * Add a new callback for an event, as for {@link #on(EventKey, ITypedEventCallback)}.
+	 * @param <T> the type of the payload
+	 * @param key the event
+	 * @param callback callback to handle event
+	 * @return a subscription that can remove the callback
+	 */
+	public <T> Subscription subscribe(EventKey<T> key, ITypedEventCallback<? super T> callback) {
+		on(key,callback);
+		return new Subscription(key.getName(),()->{return off(key,callback);});
+	}
+
+	/**
+	 * Add a new callback for all events emitted with {@link #emit(String, Object...)}
+	 * or {@link #emit(EventKey, Object)}.
+	 * @param callback callback to handle every event
+	 * @return this event handler for chaining
+	 */
+	public Eventable onAll(IWildcardCallback callback) {
+		synchronized(lock) {
+			IWildcardCallback[] updated = Arrays.copyOf(wildcards,wildcards.length+1);
+			updated[wildcards.length]=callback;
+			wildcards=updated;
+		}
+		return this;
+	}
+
+	/**
+	 * Add a new callback for all events, as for {@link #onAll(IWildcardCallback)}.
+	 * @param callback callback to handle every event
+	 * @return a subscription that can remove the callback
+	 */
+	public Subscription subscribeAll(IWildcardCallback callback) {
+		onAll(callback);
+		return new Subscription("*",()->{return offAll(callback);});
+	}
+
+	/**
+	 * Remove a callback for all events.
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed
+	 */
+	public boolean offAll(IWildcardCallback callback) {
+		synchronized(lock) {
+			IWildcardCallback[] registered = wildcards;
+			int i = indexOf(registered,callback);
+			if(i<0) return false;
+			wildcards=without(registered,i,new IWildcardCallback[registered.length-1]);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove a callback for an event. If the callback was added more than once
+	 * then only one of them is removed.
+	 * @param eventName event name
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed
+	 */
+	public boolean off(String eventName, IEventCallback callback) {
+		EventKey<?> key = EventKey.find(eventName);
+		if(key==null) return false;
+		synchronized(lock) {
+			Callbacks registered = lookup(key);
+			if(registered==null) return false;
+			int i = indexOf(registered.untyped,callback);
+			if(i<0) return false;
+			replace(key,new Callbacks(without(registered.untyped,i,
+					new IEventCallback[registered.untyped.length-1]),registered.typed));
+			return true;
+		}
+	}
+
+	/**
+	 * Remove a callback for an event. If the callback was added more than once
+	 * then only one of them is removed.
+	 * @param <T> the type of the payload
+	 * @param key the event
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed
+	 */
+	public <T> boolean off(EventKey<T> key, ITypedEventCallback<? super T> callback) {
+		synchronized(lock) {
+			Callbacks registered = lookup(key);
+			if(registered==null) return false;
+			int i = indexOf(registered.typed,callback);
+			if(i<0) return false;
+			replace(key,new Callbacks(registered.untyped,without(registered.typed,i,
+					new ITypedEventCallback<?>[registered.typed.length-1])));
+			return true;
+		}
+	}
+
+	/**
+	 * Remove all of the callbacks for an event.
+	 * @param eventName event name
+	 * @return the number of callbacks removed
+	 */
+	public int off(String eventName) {
+		EventKey<?> key = EventKey.find(eventName);
+		return key==null?0:off(key);
+	}
+
+	/**
+	 * Remove all of the callbacks for an event.
+	 * @param key the event
+	 * @return the number of callbacks removed
+	 */
+	public int off(EventKey<?> key) {
+		synchronized(lock) {
+			Callbacks registered = lookup(key);
+			if(registered==null) return 0;
+			replace(key,null);
+			return registered.size();
+		}
+	}
+
+	private static int indexOf(Object[] registered, Object callback) {
+		for(int i=0;i<registered.length;i++) {
+			if(registered[i]==callback) return i;
+		}
+		return -1;
+	}
+
+	private static <C> C[] without(C[] registered, int i, C[] updated) {
+		System.arraycopy(registered,0,updated,0,i);
+		System.arraycopy(registered,i+1,updated,i,registered.length-i-1);
+		return updated;
+	}
 }
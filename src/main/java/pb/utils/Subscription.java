@@ -0,0 +1,47 @@
+package pb.utils;
+
+import java.util.function.BooleanSupplier;
+
+import pb.protocols.event.IEventCallback;
+import pb.protocols.event.IWildcardCallback;
+
+/**
+ * A callback registered with
+ * {@link pb.utils.Eventable#subscribe(String, IEventCallback)} or
+ * {@link pb.utils.Eventable#subscribeAll(IWildcardCallback)}, that can be
+ * used to remove it again, e.g. when the session it was added for stops.
+ *
+ * @see {@link pb.utils.Eventable}
+ * @author aaron
+ *
+ */
+public final class Subscription {
+
+	private final String eventName;
+	private final BooleanSupplier remover;
+	private volatile boolean cancelled=false;
+
+	Subscription(String eventName,BooleanSupplier remover) {
+		this.eventName=eventName;
+		this.remover=remover;
+	}
+
+	/**
+	 * Remove the callback, it receives no more events once this returns,
+	 * apart from any that are being emitted at the same time.
+	 * @return true if the callback was removed, false if it was already
+	 */
+	public boolean cancel() {
+		if(cancelled) return false;
+		cancelled=true;
+		return remover.getAsBoolean();
+	}
+
+	/**
+	 * @return the event name the callback was registered for, "*" for
+	 * a wildcard callback
+	 */
+	public String getEventName() {
+		return eventName;
+	}
+}
@@ -0,0 +1,86 @@
+package pb.utils;
+
+import pb.protocols.ICallback;
+
+/**
+ * A handle on a callback scheduled with
+ * {@link pb.utils.Utils#setTimeout(ICallback, long)}, that can be used to
+ * cancel it. Cancelling removes the callback from the timer straight away,
+ * so nothing is kept around for timeouts that will never fire.
+ *
+ * @see {@link pb.utils.TimerWheel}
+ * @author aaron
+ *
+ */
+public final class Timeout {
+
+	private static final int pending=0;
+	private static final int cancelled=1;
+	private static final int expired=2;
+
+	final TimerWheel wheel;
+	final ICallback callback;
+
+	/**
+	 * The tick on which the callback is due.
+	 */
+	final long deadline;
+
+	// the bucket list this timeout is in, guarded by the wheel
+	Timeout prev;
+	Timeout next;
+	int bucket=-1;
+
+	/**
+	 * Guarded by the wheel.
+	 */
+	int state=pending;
+
+	Timeout(TimerWheel wheel,ICallback callback,long deadline) {
+		this.wheel=wheel;
+		this.callback=callback;
+		this.deadline=deadline;
+	}
+
+	/**
+	 * Stop the callback from being called, if it has not been already.
+	 * @return true if the timeout was cancelled, false if it had already
+	 * expired or been cancelled
+	 */
+	public boolean cancel() {
+		synchronized(wheel) {
+			if(state!=pending) return false;
+			state=cancelled;
+			wheel.unlink(this);
+			return true;
+		}
+	}
+
+	/**
+	 * Called by the wheel, with the wheel locked.
+	 * @return true if the timeout was still pending
+	 */
+	boolean expire() {
+		if(state!=pending) return false;
+		state=expired;
+		return true;
+	}
+
+	/**
+	 * @return true if the timeout was cancelled
+	 */
+	public boolean isCancelled() {
+		synchronized(wheel) {
+			return state==cancelled;
+		}
+	}
+
+	/**
+	 * @return true if the callback has been, or is being, called
+	 */
+	public boolean isExpired() {
+		synchronized(wheel) {
+			return state==expired;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package pb.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A hashed timing wheel. Time is divided into ticks and the wheel has a
+ * bucket for each tick, going round and round; a timeout is put in the
+ * bucket for the tick it is due on, so scheduling and cancelling are both
+ * constant time no matter how many timeouts are pending. A single thread
+ * advances the wheel once per tick and hands the callbacks that are due to a
+ * pool of threads, so a slow callback can never hold up the wheel or any
+ * other timeout.
+ * <br/>
+ * Timeouts fire on the first tick at or after they are due, so the tick
+ * duration is the precision of the timer.
+ *
+ * @see {@link pb.utils.Timeout}
+ * @see {@link pb.utils.Utils#setTimeout(ICallback, long)}
+ * @author aaron
+ *
+ */
+public class TimerWheel {
+	private static Logger log = Logger.getLogger(TimerWheel.class.getName());
+
+	/**
+	 * Default tick duration in ms.
+	 */
+	public static final long defaultTickDuration = 10;
+
+	/**
+	 * Default number of buckets, a little over five seconds worth of ticks
+	 * at the default duration. Longer timeouts go round more than once.
+	 */
+	public static final int defaultWheelSize = 512;
+
+	/**
+	 * The head of each bucket's list of timeouts.
+	 */
+	private final Timeout[] buckets;
+
+	private final int mask;
+
+	private final long tickNanos;
+
+	private final long startTime;
+
+	/**
+	 * The last tick that was processed.
+	 */
+	private long tick=0;
+
+	/**
+	 * Number of timeouts in the wheel.
+	 */
+	private int pending=0;
+
+	private volatile boolean stopped=false;
+
+	private final Thread ticker;
+
+	/**
+	 * Runs the callbacks that are due.
+	 */
+	private final ExecutorService callbacks = Executors.newCachedThreadPool((runnable)->{
+		Thread thread = new Thread(runnable,"TimeoutCallback");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Initialise the wheel with the default tick duration and size.
+	 */
+	public TimerWheel() {
+		this(defaultTickDuration,defaultWheelSize);
+	}
+
+	/**
+	 * Initialise the wheel and start its thread.
+	 * @param tickDuration in ms
+	 * @param wheelSize number of buckets, rounded up to a power of two
+	 */
+	public TimerWheel(long tickDuration,int wheelSize) {
+		int size=1;
+		while(size<wheelSize) size<<=1;
+		buckets=new Timeout[size];
+		mask=size-1;
+		tickNanos=tickDuration*1000000L;
+		startTime=System.nanoTime();
+		// like java.util.Timer, the thread keeps the jvm alive until stopped
+		ticker=new Thread(()->{run();},"TimerWheel");
+		ticker.start();
+	}
+
+	/**
+	 * Schedule a callback.
+	 * @param callback the method to call
+	 * @param delay the delay in ms before calling the method
+	 * @return a handle that can cancel the callback
+	 */
+	public Timeout schedule(ICallback callback,long delay) {
+		long due = (System.nanoTime()-startTime+Math.max(delay,0)*1000000L+tickNanos-1)/tickNanos;
+		synchronized(this) {
+			Timeout timeout = new Timeout(this,callback,Math.max(due,tick+1));
+			if(stopped) {
+				timeout.cancel();
+				return timeout;
+			}
+			int bucket = (int)(timeout.deadline & mask);
+			timeout.bucket=bucket;
+			timeout.next=buckets[bucket];
+			if(timeout.next!=null) timeout.next.prev=timeout;
+			buckets[bucket]=timeout;
+			pending++;
+			return timeout;
+		}
+	}
+
+	/**
+	 * Remove a timeout from its bucket, called with the wheel locked.
+	 * @param timeout
+	 */
+	void unlink(Timeout timeout) {
+		if(timeout.bucket<0) return;
+		if(timeout.prev!=null) timeout.prev.next=timeout.next;
+		else buckets[timeout.bucket]=timeout.next;
+		if(timeout.next!=null) timeout.next.prev=timeout.prev;
+		timeout.prev=null;
+		timeout.next=null;
+		timeout.bucket=-1;
+		pending--;
+	}
+
+	/**
+	 * @return the number of timeouts that are waiting to fire
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	private void run() {
+		while(!stopped) {
+			long wait = startTime+(tick+1)*tickNanos-System.nanoTime();
+			if(wait>0) {
+				try {
+					Thread.sleep(wait/1000000L,(int)(wait%1000000L));
+				} catch (InterruptedException e) {
+					// check if stopped
+				}
+				continue;
+			}
+			List<Timeout> due = null;
+			synchronized(this) {
+				tick++;
+				Timeout timeout = buckets[(int)(tick & mask)];
+				while(timeout!=null) {
+					Timeout next = timeout.next;
+					if(timeout.deadline<=tick) {
+						unlink(timeout);
+						timeout.expire();
+						if(due==null) due = new ArrayList<>();
+						due.add(timeout);
+					}
+					timeout=next;
+				}
+			}
+			if(due!=null) due.forEach((timeout)->{dispatch(timeout);});
+		}
+	}
+
+	private void dispatch(Timeout timeout) {
+		callbacks.execute(()->{
+			try {
+				timeout.callback.callback();
+			} catch (RuntimeException e) {
+				log.severe("timeout callback failed: "+e);
+			}
+		});
+	}
+
+	/**
+	 * Stop the wheel, pending timeouts are cancelled.
+	 */
+	public void stop() {
+		stopped=true;
+		ticker.interrupt();
+		synchronized(this) {
+			for(int i=0;i<buckets.length;i++) {
+				while(buckets[i]!=null) buckets[i].cancel();
+			}
+		}
+		callbacks.shutdown();
+	}
+}
@@ -1,8 +1,5 @@
 package pb.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import pb.protocols.ICallback;
 
 /**
@@ -39,10 +36,10 @@ public class Utils {
 	 * Use of a single timer object over the entire system helps
 	 * to reduce thread usage.
 	 */
-	private Timer timer = new Timer();
+	private TimerWheel timer;
 	
 	public Utils() {
-		timer=new Timer();
+		timer=new TimerWheel();
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -58,25 +55,22 @@ public class Utils {
 	 * <code>
 	 * Utils.getInstance().setTimeout(()->{doSomething();},10000);
 	 * </code>
+	 * The callback is called on a pool thread, so it may block without
+	 * delaying other timeouts, but callbacks that are due at the same time
+	 * may run at the same time.
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return a handle that can be used to cancel the callback
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public Timeout setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
-			}
-			
-		}, delay);
+		return timer.schedule(callback, delay);
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
 	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+		timer.stop();
 	}
 }